@@ -5,27 +5,63 @@
 //  https://github.com/eboudrant/inflickr_mobile
 //
 
+package kr.infli;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.HashSet;
 import java.util.Set;
 
 import android.app.Activity;
 import android.app.ProgressDialog;
+import android.content.pm.ApplicationInfo;
 import android.graphics.Color;
 import android.graphics.Typeface;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.view.View;
 import android.view.Window;
+import android.widget.AdapterView;
 import android.widget.ListView;
 import android.widget.TextView;
 
-import com.googlecode.flickrjandroid.Flickr;
 import com.googlecode.flickrjandroid.photos.Extras;
-import com.googlecode.flickrjandroid.photos.PhotoList;
 import com.googlecode.flickrjandroid.photos.SearchParameters;
 
-public class InflikrActivity extends Activity
+public class InflikrActivity extends Activity implements InflikrPhotoSource.Listener
 {
+  static final String LOG_TAG = "InflikrActivity";
+
+  private static final String[] TAGS = { "hongkong", "tokyo", "portra", "velvia", "ektar", "trix" };
+
+  // One query per tag merged on the device, instead of one query for all the tags
+  private static final boolean FAN_OUT_SEARCH = false;
+
+  private static final String PHOTOS_FILE = "photos";
+
+  // Host of an InflikrFixtureServer to use instead of Flickr, 10.0.2.2 is the
+  // machine running the emulator. Null for Flickr.
+  private static final String FIXTURE_HOST = null;
+  private static final int FIXTURE_PORT = 8080;
+
+  // Override the fixture server from the launching intent, for the benchmarks.
+  // Only read by a debuggable build.
+  public static final String EXTRA_FIXTURE_HOST = "kr.infli.FIXTURE_HOST";
+  public static final String EXTRA_FIXTURE_PORT = "kr.infli.FIXTURE_PORT";
+
+  private static String m_sFixtureHost = FIXTURE_HOST;
+  private static int m_sFixturePort = FIXTURE_PORT;
+
+  private InflikrAdapter m_adapter;
+
+  private InflikrPhotoSource m_photoSource;
+
+  private InflikrDownloader m_downloader;
+
+  private ListView m_listView;
+
+  // Shown until the first page is loaded
+  private ProgressDialog m_dialog;
   
   @Override
   protected void onCreate(Bundle savedInstanceState)
@@ -33,73 +69,203 @@ public class InflikrActivity extends Activity
     this.requestWindowFeature(Window.FEATURE_NO_TITLE);
     super.onCreate(savedInstanceState);
     setContentView(R.layout.activity_main);
-    new FlickrLoadTask().execute();
-  }
-  
-  private class FlickrLoadTask extends AsyncTask<String, Void, PhotoList>
-  {
-    private ProgressDialog m_dialog;
 
-    @Override
-    protected void onPreExecute()
+    if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0 && getIntent().hasExtra(EXTRA_FIXTURE_HOST))
     {
-      m_dialog = new ProgressDialog(InflikrActivity.this){
-        @Override
-        public void onCreate(Bundle savedInstanceState) {
-            super.onCreate(savedInstanceState);
-            View view = this.findViewById(android.R.id.message);
-            if (view != null && view instanceof TextView) {
-                TextView tv = (TextView) view;
-                Typeface font = Typeface.createFromAsset(InflikrActivity.this.getAssets(), "fonts/Slackey.ttf");
-                tv.setTypeface(font);
-                tv.setTextColor(Color.rgb(0, 99, 220));
-            }
-        }
-      };
-      m_dialog.setMessage("Loading photos...");
-      m_dialog.setCancelable(false);
-      m_dialog.setCanceledOnTouchOutside(false);
-      m_dialog.show();
+      m_sFixtureHost = getIntent().getStringExtra(EXTRA_FIXTURE_HOST);
+      m_sFixturePort = getIntent().getIntExtra(EXTRA_FIXTURE_PORT, FIXTURE_PORT);
     }
 
-    @Override
-    protected PhotoList doInBackground(String... params)
+    // The source and the downloader survive the rotations, the views do not
+    InflikrRetainedFragment retained = (InflikrRetainedFragment) getFragmentManager().findFragmentByTag(InflikrRetainedFragment.TAG);
+    if (retained == null)
+    {
+      retained = new InflikrRetainedFragment();
+      getFragmentManager().beginTransaction().add(retained, InflikrRetainedFragment.TAG).commit();
+    }
+    boolean started = retained.getPhotoSource() != null;
+    if (!started)
     {
-      try
+      InflikrTransport transport = newTransport();
+      retained.setUp(newPhotoSource(transport), new InflikrDownloader(this, transport));
+    }
+    m_photoSource = retained.getPhotoSource();
+    m_photoSource.setListener(this);
+    m_downloader = retained.getImageDownloader();
+
+    m_listView = (ListView) findViewById(R.id.listView1);
+    m_adapter = new InflikrAdapter(this, m_photoSource, m_downloader);
+    m_listView.setAdapter(m_adapter);
+    m_listView.setOnItemClickListener(new AdapterView.OnItemClickListener()
+    {
+      public void onItemClick(AdapterView<?> parent, View view, int position, long id)
       {
-        Set<String> extras = new HashSet<String>();
-        extras.add(Extras.DATE_TAKEN);
-        extras.add(Extras.DATE_UPLOAD);
-        extras.add(Extras.OWNER_NAME);
-
-        String apiKey = "API_KEY";
-        Flickr f = new Flickr(apiKey);
-
-        SearchParameters searchParameters = new SearchParameters();
-        searchParameters.setTags(new String[] { "hongkong", "tokyo", "portra", "velvia", "ektar", "trix" });
-        searchParameters.setSort(SearchParameters.INTERESTINGNESS_DESC);
-        searchParameters.setExtras(extras);
-        // 500 is the max on flickr API
-        return f.getPhotosInterface().search(searchParameters, 500, 0);
+        // Full screen, zoomable
+        InflikrRow row = m_adapter.getItem(position);
+        if (row != null)
+        {
+          startActivity(InflikrViewerActivity.newIntent(InflikrActivity.this, row));
+        }
       }
-      catch (Exception e)
+    });
+
+    if (!started)
+    {
+      m_photoSource.start();
+    }
+    else if (m_photoSource.isWaitingForPhotos())
+    {
+      showProgressDialog();
+    }
+  }
+
+  @Override
+  protected void onDestroy()
+  {
+    super.onDestroy();
+    dismissProgressDialog();
+    // The downloads of the rows carry on, the new views attach to them
+    m_adapter.close();
+  }
+
+  /**
+   * The list is shown with the first page, the next ones are loaded while
+   * scrolling.
+   */
+  private InflikrPhotoSource newPhotoSource(InflikrTransport transport)
+  {
+    String apiKey = "API_KEY";
+    // Streams the search responses through the transport of the downloads
+    InflikrSearchClient client = new InflikrSearchClient(transport, apiKey);
+
+    // The last list, shown before the network answers
+    InflikrPhotoStore store = new InflikrPhotoStore(new File(getFilesDir(), PHOTOS_FILE));
+
+    if (FAN_OUT_SEARCH)
+    {
+      SearchParameters[] streams = new SearchParameters[TAGS.length];
+      for (int i = 0; i < TAGS.length; i++)
       {
-        e.printStackTrace();
-        return null;
+        streams[i] = newSearchParameters(new String[] { TAGS[i] });
       }
-      finally
+      return new InflikrPhotoSource(client, streams, store, this);
+    }
+    return new InflikrPhotoSource(client, newSearchParameters(TAGS), store, this);
+  }
+
+  public void onPhotosAdded(int count)
+  {
+    m_adapter.notifyDataSetChanged();
+    if (m_dialog != null)
+    {
+      dismissProgressDialog();
+      startSearch("", true, new Bundle(), false);
+    }
+  }
+
+  public void onWaitingForPhotos()
+  {
+    showProgressDialog();
+  }
+
+  public void onPhotosReplaced()
+  {
+    // Stay on the photo on top of the screen, wherever it moved
+    int position = m_listView.getFirstVisiblePosition();
+    View first = m_listView.getChildAt(0);
+    long id = position < m_adapter.getCount() ? m_adapter.getItemId(position) : -1;
+    m_adapter.notifyDataSetChanged();
+    for (int i = 0; i < m_adapter.getCount(); i++)
+    {
+      if (m_adapter.getItemId(i) == id)
       {
-        m_dialog.dismiss();
+        m_listView.setSelectionFromTop(i, first == null ? 0 : first.getTop());
+        break;
       }
     }
+  }
 
-    @Override
-    protected void onPostExecute(PhotoList photoList)
+  public void onLoadFailed()
+  {
+    // The source retries by itself, the list shows the page once it is loaded
+    dismissProgressDialog();
+  }
+
+  /**
+   * Prints the downloader metrics, with
+   * <code>adb shell dumpsys activity kr.infli/.InflikrActivity</code>. The
+   * "reset" argument clears them after printing.
+   */
+  @Override
+  public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args)
+  {
+    super.dump(prefix, fd, writer, args);
+    writer.print(prefix);
+    writer.println("Downloader metrics:");
+    for (String line : m_downloader.getMetricsSnapshot().toString().split("\n"))
+    {
+      writer.print(prefix);
+      writer.print("  ");
+      writer.println(line);
+    }
+    if (args != null && args.length > 0 && "reset".equals(args[0]))
     {
-      ListView photos = (ListView) InflikrActivity.this.findViewById(R.id.listView1);
-      photos.setAdapter(new InflikrAdapter(InflikrActivity.this, photoList));
-      InflikrActivity.this.startSearch("", true, new Bundle(), false);
+      m_downloader.getMetrics().reset();
     }
   }
 
+  /**
+   * @return The transport to Flickr, or to the fixture server if there is one.
+   */
+  static InflikrTransport newTransport()
+  {
+    InflikrTransport transport = new InflikrHttpTransport();
+    return m_sFixtureHost == null ? transport : new InflikrLoopbackTransport(transport, m_sFixtureHost, m_sFixturePort);
+  }
+
+  private static SearchParameters newSearchParameters(String[] tags)
+  {
+    Set<String> extras = new HashSet<String>();
+    extras.add(Extras.DATE_TAKEN);
+    extras.add(Extras.DATE_UPLOAD);
+    extras.add(Extras.OWNER_NAME);
+    // The secret of the original size, for the viewer
+    extras.add(Extras.ORIGINAL_FORMAT);
+
+    SearchParameters searchParameters = new SearchParameters();
+    searchParameters.setTags(tags);
+    searchParameters.setSort(SearchParameters.INTERESTINGNESS_DESC);
+    searchParameters.setExtras(extras);
+    return searchParameters;
+  }
+
+  private void showProgressDialog()
+  {
+    m_dialog = new ProgressDialog(InflikrActivity.this){
+      @Override
+      public void onCreate(Bundle savedInstanceState) {
+          super.onCreate(savedInstanceState);
+          View view = this.findViewById(android.R.id.message);
+          if (view != null && view instanceof TextView) {
+              TextView tv = (TextView) view;
+              Typeface font = Typeface.createFromAsset(InflikrActivity.this.getAssets(), "fonts/Slackey.ttf");
+              tv.setTypeface(font);
+              tv.setTextColor(Color.rgb(0, 99, 220));
+          }
+      }
+    };
+    m_dialog.setMessage("Loading photos...");
+    m_dialog.setCancelable(false);
+    m_dialog.setCanceledOnTouchOutside(false);
+    m_dialog.show();
+  }
+
+  private void dismissProgressDialog()
+  {
+    if (m_dialog != null)
+    {
+      m_dialog.dismiss();
+      m_dialog = null;
+    }
+  }
 }
@@ -7,94 +7,122 @@
 
 package kr.infli;
 
-import java.text.SimpleDateFormat;
-import java.util.Locale;
-
 import android.content.Context;
-import android.graphics.Color;
 import android.graphics.Point;
 import android.graphics.Typeface;
 import android.view.Display;
-import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.WindowManager;
 import android.widget.AbsListView;
 import android.widget.AbsListView.OnScrollListener;
 import android.widget.BaseAdapter;
-import android.widget.ImageView;
-import android.widget.LinearLayout;
 import android.widget.ListView;
-import android.widget.RelativeLayout;
-import android.widget.TextView;
-
-import com.googlecode.flickrjandroid.photos.Photo;
-import com.googlecode.flickrjandroid.photos.PhotoList;
 
-public class InflikrAdapter extends BaseAdapter implements AbsListView.OnScrollListener
+public class InflikrAdapter extends BaseAdapter implements AbsListView.OnScrollListener, InflikrRowFormatter.Listener
 {
   static final String LOG_TAG = "InflikrAdapter";
   
-  private static final SimpleDateFormat FORMATTER = new SimpleDateFormat("MMM, dd, yyyy", Locale.US);
+  // Load the next page when the last visible row is that close to the end
+  private static final int LOAD_MORE_THRESHOLD = 10;
 
   private Point m_displaySize;
 
-  private ListView m_listView;
+  // Size the photos and the avatars are decoded for
+  private int m_photoHeight;
 
-  public static class ViewsHolder
-  {
-    RelativeLayout m_container;
+  private int m_avatarSize;
 
-    RelativeLayout m_header;
+  private ListView m_listView;
 
-    RelativeLayout m_footer;
+  // Sizes and paints shared by the row views
+  private final InflikrRowView.Style m_style;
 
-    TextView m_text;
+  private final InflikrDownloader m_imageDownloader;
 
-    ImageView m_avatar;
+  private final InflikrPrefetcher m_prefetcher;
 
-    ImageView m_photo;
+  // Which Flickr sizes the rows bind and upgrade to, for the measured bandwidth
+  private final InflikrSizePolicy m_sizePolicy;
 
-    TextView m_date;
-  }
+  private Context m_context;
 
-  private final InflikrDownloader m_imageDownloader;
+  private InflikrPhotoSource m_photoSource;
 
-  private Context m_context;
+  // Grows as the source loads pages
+  private InflikrPhotoTable m_photos;
 
-  private PhotoList m_photoList;
+  // The rows around the visible ones, formatted ahead of the scroll
+  private final InflikrRowFormatter m_formatter;
   
   private Typeface m_font;
 
-  public InflikrAdapter(Context context, PhotoList photoList)
+  public InflikrAdapter(Context context, InflikrPhotoSource photoSource, InflikrDownloader imageDownloader)
   {
-    this.m_photoList = photoList;
+    this.m_photoSource = photoSource;
+    this.m_photos = photoSource.getPhotos();
     this.m_context = context;
     
     WindowManager wm = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
     Display display = wm.getDefaultDisplay();
     m_displaySize = new Point();
     display.getSize(m_displaySize);
+    // Use the screen width with a 24x36 ratio
+    m_photoHeight = (int) ((float) m_displaySize.x * 0.68f);
+    // The avatar is in the 45dp header
+    m_avatarSize = (int) (45 * context.getResources().getDisplayMetrics().density);
     
     m_font = Typeface.createFromAsset(context.getAssets(), "fonts/Slackey.ttf");
+    m_style = new InflikrRowView.Style(context, m_font, m_displaySize.x, m_photoHeight);
+    m_formatter = new InflikrRowFormatter(m_photos, m_style, this);
     
-    m_imageDownloader = new InflikrDownloader(context);
-    
+    m_imageDownloader = imageDownloader;
+    m_sizePolicy = new InflikrSizePolicy(m_imageDownloader.getBandwidthMeter(), m_displaySize.x);
+    m_prefetcher = new InflikrPrefetcher(m_imageDownloader, m_sizePolicy, m_displaySize.x, m_photoHeight, m_avatarSize);
+  }
+
+  /**
+   * Stops the work done for the views of this adapter, which must not be used
+   * anymore. The source and the downloader are left running for the next one.
+   */
+  public void close()
+  {
+    m_prefetcher.cancel();
+    m_formatter.close();
+    m_imageDownloader.cancelHiResUpgrades();
   }
 
   public int getCount()
   {
-    return m_photoList == null ? 0 : m_photoList.size();
+    return m_photos.size();
   }
 
-  public Photo getItem(int position)
+  /**
+   * @return The row of the photo at this position, null until it is formatted,
+   *         the list is then notified.
+   */
+  public InflikrRow getItem(int position)
   {
-    return m_photoList.get(position);
+    return m_formatter.getRow(position);
   }
 
+  public void onRowsFormatted()
+  {
+    notifyDataSetChanged();
+  }
+
+  /**
+   * The same photo keeps its id when the list is reloaded.
+   */
   public long getItemId(int position)
   {
-    return getItem(position).hashCode();
+    return m_photos.getId(position);
+  }
+
+  @Override
+  public boolean hasStableIds()
+  {
+    return true;
   }
 
   /**
@@ -102,8 +130,7 @@ public class InflikrAdapter extends BaseAdapter implements AbsListView.OnScrollL
    */
   public View getView(int position, View convertView, ViewGroup listView)
   {
-
-    ViewsHolder holder = null;
+    InflikrRowView rowView;
     if (convertView == null)
     {
       if (m_listView == null)
@@ -112,105 +139,86 @@ public class InflikrAdapter extends BaseAdapter implements AbsListView.OnScrollL
         m_listView = (ListView) listView;
         m_listView.setOnScrollListener(this);
       }
-      // Create a new view
-      LayoutInflater inflater = (LayoutInflater) m_context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-      convertView = inflater.inflate(R.layout.picture, listView, false);
-      // Keep all views in the holder so we minimize the number of findViewById invocations
-      holder = new ViewsHolder();
-      holder.m_footer = (RelativeLayout) convertView.findViewById(R.id.footer);
-      holder.m_header = (RelativeLayout) convertView.findViewById(R.id.header);
-      holder.m_header.setBackgroundColor(Color.WHITE);
-      holder.m_header.setAlpha(0.8f);
-      holder.m_photo = (ImageView) convertView.findViewById(R.id.photo);
-      holder.m_text = (TextView) convertView.findViewById(R.id.title);
-      holder.m_text.setTextColor(Color.rgb(0, 99, 220));
-      holder.m_text.setTypeface(m_font);
-      holder.m_avatar = (ImageView) convertView.findViewById(R.id.avatar);
-      holder.m_date = (TextView) convertView.findViewById(R.id.date);
-      holder.m_date.setTextColor(Color.rgb(255, 0, 132));
-      holder.m_date.setTypeface(m_font);
-      // Use the screen width with a 24x36 ratio
-      holder.m_photo.setLayoutParams(new LinearLayout.LayoutParams(m_displaySize.x, (int) ((float) m_displaySize.x * 0.68f)));
-      holder.m_container = (RelativeLayout) convertView;
-      convertView.setTag(holder);
-      // So the header is over the photo 
-      holder.m_header.bringToFront();
+      // One view per row, it draws its header, photo and footer itself
+      rowView = new InflikrRowView(m_context, m_style);
     }
     else
     {
       // Recycle existing view
-      holder = (ViewsHolder) convertView.getTag();
+      rowView = (InflikrRowView) convertView;
     }
     
-    // Get the photo fill labels and reauest image download
-    Photo photo = m_photoList.get(position);
-    m_imageDownloader.download(photo.getOwner().getBuddyIconUrl(), holder.m_avatar, null);
-    m_imageDownloader.download(photo.getSmallUrl(), holder.m_photo, null);
-    holder.m_photo.setTag(photo);
-    holder.m_text.setText(" " + (photo.getTitle().equals("") ? "Untitled" : photo.getTitle()) + " by " + photo.getOwner().getUsername());
-    if(photo.getDateTaken() != null)
-    {
-      holder.m_date.setText("Taken on " + FORMATTER.format(photo.getDateTaken()));
-    }
-    else if(photo.getDatePosted() != null)
+    // Bind the row, its text is laid out once, and request image download
+    InflikrRow row = getItem(position);
+    rowView.bind(row);
+    if (row == null)
     {
-      holder.m_date.setText("Uploaded on " + FORMATTER.format(photo.getDatePosted()));
+      // Not formatted yet, unbind the images of the recycled view meanwhile
+      m_imageDownloader.download(null, rowView.getAvatarTarget(), null);
+      m_imageDownloader.download(null, rowView.getPhotoTarget(), null);
+      return rowView;
     }
-    else
-    {
-      holder.m_date.setText("No date");
-    }
-    
-    // By default always reset the header to the top
-    holder.m_header.setY(0);
-    
-    return convertView;
+    m_imageDownloader.download(row.m_avatarUrl, rowView.getAvatarTarget(), null, m_avatarSize, m_avatarSize, InflikrScheduler.Priority.AVATAR);
+    m_imageDownloader.download(row.getUrl(m_sizePolicy.getBindSize()), rowView.getPhotoTarget(), null, m_displaySize.x, m_photoHeight);
+
+    return rowView;
   }
 
   /**
-   * On scroll we adjust the header y coord so 
+   * On scroll we adjust the header offset so 
    * - it is always on the item
    * - two headers do not overlap
+   * and we format and prefetch the next rows, loading the next page of photos
+   * near the end
    */
   @Override
   public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount)
   {
-    View firstChild = view.getChildAt(0);
-    if (firstChild != null)
+    if (firstVisibleItem + visibleItemCount >= totalItemCount - LOAD_MORE_THRESHOLD)
+    {
+      m_photoSource.loadMore();
+    }
+    m_formatter.formatAround(firstVisibleItem, firstVisibleItem + visibleItemCount);
+    m_prefetcher.onScroll(m_photos, firstVisibleItem, visibleItemCount);
+
+    InflikrRowView first = (InflikrRowView) view.getChildAt(0);
+    if (first != null)
     {
-      View secondChild = view.getChildAt(1);
-      ViewsHolder first = (ViewsHolder) firstChild.getTag();
+      InflikrRowView second = (InflikrRowView) view.getChildAt(1);
       int cap = 0;
-      if (secondChild != null)
+      if (second != null)
       {
         // Push the previous header if the second is here
-        ViewsHolder second = (ViewsHolder) secondChild.getTag();
-        cap = Math.min(0, (int) secondChild.getY() - first.m_header.getHeight());
+        cap = Math.min(0, (int) second.getY() - first.getHeaderHeight());
         // And always reset to 0 the second header, onScroll do not fire for all pixel move.
-        second.m_header.setY(0);
+        second.setHeaderOffset(0);
       }
-      // Recompute the Y of the first header
-      float y = Math.max(0, -1 * firstChild.getY() + cap);
-      first.m_header.setY(y);
+      // Recompute the offset of the first header, only redraws the row
+      int y = Math.max(0, (int) -first.getY() + cap);
+      first.setHeaderOffset(y);
     }
 
   }
 
   /**
-   * When the scroll end we send download request for medium resolution
+   * When the scroll end we send download request for the upgrade size
    */
   @Override
   public void onScrollStateChanged(AbsListView view, int scrollState)
   {
     if(scrollState == OnScrollListener.SCROLL_STATE_IDLE)
     {
-      // Scroll ended, let's download an hi-res
-      for (int i = 0; i < view.getChildCount(); i++)
+      // Scroll ended, let's download an hi-res, unless the link is too slow or the rows are bound to it already
+      InflikrSizePolicy.Size upgrade = m_sizePolicy.getUpgradeSize();
+      for (int i = 0; upgrade != null && i < view.getChildCount(); i++)
       {
-        View child = view.getChildAt(i);
-        Photo photo = m_photoList.get(view.getPositionForView(child));
-        ViewsHolder holder = (ViewsHolder) child.getTag();
-        m_imageDownloader.download(photo.getMediumUrl(), holder.m_photo, photo);
+        InflikrRowView child = (InflikrRowView) view.getChildAt(i);
+        InflikrRow row = child.getRow();
+        if (row == null)
+        {
+          continue;
+        }
+        m_imageDownloader.download(row.getUrl(upgrade), child.getPhotoTarget(), Long.valueOf(row.m_itemId), m_displaySize.x, m_photoHeight);
       }
     }
   }
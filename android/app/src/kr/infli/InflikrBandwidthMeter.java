@@ -0,0 +1,56 @@
+//
+//  InflikrBandwidthMeter
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+
+package kr.infli;
+
+/**
+ * Estimates the bandwidth from the byte counts and durations of the actual
+ * downloads.
+ *
+ * <p>
+ * Bytes and durations are summed with an exponential decay, so the estimate
+ * follows the last downloads and a large image weighs more than a buddy icon.
+ * A duration runs from the request to the last byte: the latency of small
+ * images is part of what they cost. Downloads run in parallel, the estimate is
+ * the bandwidth one download gets, the one a new request can expect.
+ * </p>
+ */
+public class InflikrBandwidthMeter
+{
+  // Weight kept by the past at each new download
+  private static final float DECAY = 0.8f;
+
+  // Below that, the estimate is not trusted yet
+  private static final long MIN_MEASURED_BYTES = 32 * 1024;
+
+  private float m_bytes;
+  private float m_millis;
+  private long m_totalBytes;
+
+  /**
+   * Called for each download, from any thread.
+   */
+  public synchronized void record(long bytes, long millis)
+  {
+    m_bytes = m_bytes * DECAY + bytes;
+    m_millis = m_millis * DECAY + Math.max(1, millis);
+    m_totalBytes += bytes;
+  }
+
+  /**
+   * @return The estimated bandwidth in bytes per second, 0 until enough was
+   *         downloaded to tell.
+   */
+  public synchronized float getBytesPerSecond()
+  {
+    if (m_totalBytes < MIN_MEASURED_BYTES || m_millis <= 0)
+    {
+      return 0;
+    }
+    return m_bytes * 1000f / m_millis;
+  }
+}
@@ -0,0 +1,187 @@
+//
+//  InflikrBitmapPool
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+
+package kr.infli;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import android.graphics.Bitmap;
+
+/**
+ * Bitmaps nobody uses anymore, kept to be decoded into again with
+ * BitmapFactory.Options.inBitmap.
+ *
+ * <p>
+ * A bitmap may only be reused once neither the memory cache nor an image view
+ * holds it, so users retain and release it. When the last user releases a
+ * mutable bitmap it becomes free and is handed to the next decode of the same
+ * dimensions and config. Until Jelly Bean MR2 inBitmap requires the exact same
+ * size, which is what the list rows have anyway.
+ * </p>
+ */
+public class InflikrBitmapPool
+{
+  private final int m_maxSize;
+
+  // Users count of the bitmaps in use, weak so a leaked count never holds a bitmap
+  private final WeakHashMap<Bitmap, int[]> m_users = new WeakHashMap<Bitmap, int[]>();
+
+  // Free bitmaps by dimensions and config, the oldest first
+  private final Map<String, LinkedList<Bitmap>> m_free = new HashMap<String, LinkedList<Bitmap>>();
+  private final LinkedList<Bitmap> m_freeOrder = new LinkedList<Bitmap>();
+  private int m_freeSize;
+
+  /**
+   * @param maxSize
+   *          The maximum number of bytes of the free bitmaps.
+   */
+  public InflikrBitmapPool(int maxSize)
+  {
+    this.m_maxSize = maxSize;
+  }
+
+  /**
+   * Adds a user to this bitmap.
+   */
+  public synchronized void retain(Bitmap bitmap)
+  {
+    int[] users = m_users.get(bitmap);
+    if (users == null)
+    {
+      m_users.put(bitmap, new int[] { 1 });
+    }
+    else
+    {
+      users[0]++;
+    }
+  }
+
+  /**
+   * Adds a user to this bitmap, unless it has already been released by all its
+   * users. In that case it may be reused and must not be displayed.
+   *
+   * @return true if the bitmap is retained.
+   */
+  public synchronized boolean tryRetain(Bitmap bitmap)
+  {
+    int[] users = m_users.get(bitmap);
+    if (users == null || users[0] == 0)
+    {
+      return false;
+    }
+    users[0]++;
+    return true;
+  }
+
+  /**
+   * Removes a user from this bitmap, it becomes free if it was the last one.
+   */
+  public synchronized void release(Bitmap bitmap)
+  {
+    int[] users = m_users.get(bitmap);
+    if (users == null || --users[0] > 0)
+    {
+      return;
+    }
+    m_users.remove(bitmap);
+    addFree(bitmap);
+  }
+
+  /**
+   * Gives back a bitmap taken with get and not decoded into.
+   */
+  public synchronized void put(Bitmap bitmap)
+  {
+    addFree(bitmap);
+  }
+
+  /**
+   * @return A free bitmap of these dimensions and config, removed from the
+   *         pool, or null if there is none.
+   */
+  public synchronized Bitmap get(int width, int height, Bitmap.Config config)
+  {
+    LinkedList<Bitmap> bitmaps = m_free.get(keyFor(width, height, config));
+    if (bitmaps == null || bitmaps.isEmpty())
+    {
+      return null;
+    }
+    Bitmap bitmap = bitmaps.removeLast();
+    m_freeOrder.remove(bitmap);
+    m_freeSize -= sizeOf(bitmap);
+    return bitmap;
+  }
+
+  /**
+   * @return true if this bitmap is free, for the tests.
+   */
+  synchronized boolean isFree(Bitmap bitmap)
+  {
+    return m_freeOrder.contains(bitmap);
+  }
+
+  /**
+   * @return The users count of this bitmap, 0 if it has none, for the tests.
+   */
+  synchronized int getUsers(Bitmap bitmap)
+  {
+    int[] users = m_users.get(bitmap);
+    return users == null ? 0 : users[0];
+  }
+
+  /**
+   * Drops all the free bitmaps, the ones in use are still tracked.
+   */
+  public synchronized void clear()
+  {
+    m_free.clear();
+    m_freeOrder.clear();
+    m_freeSize = 0;
+  }
+
+  private void addFree(Bitmap bitmap)
+  {
+    if (!bitmap.isMutable() || bitmap.isRecycled())
+    {
+      return;
+    }
+    String key = keyFor(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+    LinkedList<Bitmap> bitmaps = m_free.get(key);
+    if (bitmaps == null)
+    {
+      bitmaps = new LinkedList<Bitmap>();
+      m_free.put(key, bitmaps);
+    }
+    bitmaps.add(bitmap);
+    m_freeOrder.add(bitmap);
+    m_freeSize += sizeOf(bitmap);
+    trimToSize();
+  }
+
+  private void trimToSize()
+  {
+    while (m_freeSize > m_maxSize && !m_freeOrder.isEmpty())
+    {
+      Bitmap eldest = m_freeOrder.removeFirst();
+      m_free.get(keyFor(eldest.getWidth(), eldest.getHeight(), eldest.getConfig())).remove(eldest);
+      m_freeSize -= sizeOf(eldest);
+    }
+  }
+
+  private static int sizeOf(Bitmap bitmap)
+  {
+    return bitmap.getRowBytes() * bitmap.getHeight();
+  }
+
+  private static String keyFor(int width, int height, Bitmap.Config config)
+  {
+    return width + "x" + height + ":" + config;
+  }
+}
@@ -0,0 +1,492 @@
+//
+//  InflikrDiskCache
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+//  Inspired from
+//    https://android.googlesource.com/platform/libcore/+/android-4.1.1_r1/luni/src/main/java/libcore/io/DiskLruCache.java
+//
+
+package kr.infli;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size bounded, LRU evicted cache of raw image bytes on the file system.
+ *
+ * <p>
+ * Each entry is a single file named after the MD5 of its URL. Entries are
+ * written to a temporary file first and renamed once complete, so a crash
+ * never leaves a half-written entry behind. The access order and the entry
+ * sizes are kept in a journal, replayed when the cache is opened so the LRU
+ * order survives restarts:
+ * </p>
+ *
+ * <pre>
+ *   kr.infli.InflikrDiskCache
+ *   1
+ *
+ *   CLEAN 3400330d1dfc7f3f7f4b8d4d803dfcf6 8012
+ *   READ 3400330d1dfc7f3f7f4b8d4d803dfcf6
+ *   REMOVE 3400330d1dfc7f3f7f4b8d4d803dfcf6
+ * </pre>
+ *
+ * <p>
+ * All methods do file I/O and must not be called from the UI thread. The cache
+ * is opened lazily by the first call.
+ * </p>
+ */
+public class InflikrDiskCache
+{
+  static final String JOURNAL_FILE = "journal";
+  static final String JOURNAL_FILE_TMP = "journal.tmp";
+  static final String MAGIC = "kr.infli.InflikrDiskCache";
+  static final String VERSION = "1";
+
+  private static final String CLEAN = "CLEAN";
+  private static final String READ = "READ";
+  private static final String REMOVE = "REMOVE";
+  private static final String TMP_SUFFIX = ".tmp";
+
+  // Rebuild the journal once it contains that many useless lines
+  private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+  private final File m_directory;
+  private final long m_maxSize;
+
+  // Entry key -> file size, in access order
+  private final LinkedHashMap<String, Long> m_entries = new LinkedHashMap<String, Long>(0, 0.75f, true);
+  private long m_size;
+  private int m_redundantOpCount;
+  private Writer m_journalWriter;
+
+  public InflikrDiskCache(File directory, long maxSize)
+  {
+    this.m_directory = directory;
+    this.m_maxSize = maxSize;
+  }
+
+  /**
+   * @param url
+   *          The URL of the image.
+   * @return The file holding the cached bytes of this URL or null if it is not
+   *         in the cache.
+   */
+  public synchronized File get(String url) throws IOException
+  {
+    open();
+    String key = keyFor(url);
+    if (m_entries.get(key) == null)
+    {
+      return null;
+    }
+    File file = new File(m_directory, key);
+    if (!file.exists())
+    {
+      // Deleted behind our back, forget it
+      removeEntry(key);
+      return null;
+    }
+    journal(READ, key, -1);
+    return file;
+  }
+
+  /**
+   * Same as get, but the file is opened before the lock is released, a
+   * concurrent eviction cannot delete it in between. The stream stays valid
+   * after an eviction.
+   *
+   * @return The stream of the cached bytes of this URL, to be closed by the
+   *         caller, or null if it is not in the cache.
+   */
+  public synchronized InputStream getStream(String url) throws IOException
+  {
+    File file = get(url);
+    if (file == null)
+    {
+      return null;
+    }
+    try
+    {
+      return new FileInputStream(file);
+    }
+    catch (FileNotFoundException e)
+    {
+      // Deleted behind our back, forget it
+      removeEntry(keyFor(url));
+      return null;
+    }
+  }
+
+  /**
+   * Stores the content of the stream under this URL. The stream is fully
+   * consumed but not closed.
+   *
+   * @return The file holding the cached bytes.
+   */
+  public File put(String url, InputStream inputStream) throws IOException
+  {
+    String key = keyFor(url);
+    File tmp = write(key, inputStream);
+    synchronized (this)
+    {
+      File file = commit(key, tmp);
+      trimToSize();
+      return file;
+    }
+  }
+
+  /**
+   * Same as put, but the file is opened before the lock is released, so it
+   * is readable even if evicted right away.
+   *
+   * @return The stream of the cached bytes, to be closed by the caller.
+   */
+  public InputStream putStream(String url, InputStream inputStream) throws IOException
+  {
+    String key = keyFor(url);
+    File tmp = write(key, inputStream);
+    synchronized (this)
+    {
+      InputStream in = new FileInputStream(commit(key, tmp));
+      try
+      {
+        trimToSize();
+      }
+      catch (IOException e)
+      {
+        in.close();
+        throw e;
+      }
+      return in;
+    }
+  }
+
+  /**
+   * Writes the stream to a temporary file, out of the lock.
+   */
+  private File write(String key, InputStream inputStream) throws IOException
+  {
+    synchronized (this)
+    {
+      open();
+    }
+    // Writers of the same key use different temporary files, the last rename wins
+    File tmp = new File(m_directory, key + "." + Thread.currentThread().getId() + TMP_SUFFIX);
+    FileOutputStream fos = new FileOutputStream(tmp);
+    try
+    {
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = inputStream.read(buffer)) != -1)
+      {
+        fos.write(buffer, 0, read);
+      }
+      fos.getFD().sync();
+    }
+    catch (IOException e)
+    {
+      fos.close();
+      tmp.delete();
+      throw e;
+    }
+    fos.close();
+    return tmp;
+  }
+
+  /**
+   * Renames the temporary file to the entry. Must hold the lock.
+   */
+  private File commit(String key, File tmp) throws IOException
+  {
+    File file = new File(m_directory, key);
+    long length = tmp.length();
+    if (!tmp.renameTo(file))
+    {
+      tmp.delete();
+      throw new IOException("Cannot rename " + tmp + " to " + file);
+    }
+    Long previous = m_entries.put(key, length);
+    if (previous != null)
+    {
+      m_size -= previous;
+    }
+    m_size += length;
+    journal(CLEAN, key, length);
+    return file;
+  }
+
+  /**
+   * Removes the entry of this URL, if any.
+   */
+  public synchronized void remove(String url) throws IOException
+  {
+    open();
+    removeEntry(keyFor(url));
+  }
+
+  /**
+   * @return The number of bytes currently stored in this cache.
+   */
+  public synchronized long size()
+  {
+    return m_size;
+  }
+
+  /**
+   * Closes the journal. The cache will be reopened by the next call.
+   */
+  public synchronized void close()
+  {
+    if (m_journalWriter != null)
+    {
+      try
+      {
+        m_journalWriter.close();
+      }
+      catch (IOException e)
+      {
+        // Nothing to do, the journal is replayed as much as possible anyway
+      }
+      m_journalWriter = null;
+    }
+  }
+
+  private void open() throws IOException
+  {
+    if (m_journalWriter != null)
+    {
+      return;
+    }
+    if (!m_directory.isDirectory() && !m_directory.mkdirs())
+    {
+      throw new IOException("Cannot create " + m_directory);
+    }
+    m_entries.clear();
+    m_size = 0;
+    m_redundantOpCount = 0;
+
+    File journal = new File(m_directory, JOURNAL_FILE);
+    if (journal.exists())
+    {
+      try
+      {
+        readJournal(journal);
+        deleteOrphans();
+        m_journalWriter = new BufferedWriter(new FileWriter(journal, true));
+        trimToSize();
+        return;
+      }
+      catch (IOException e)
+      {
+        // Corrupted journal, start over with an empty cache
+        m_entries.clear();
+        m_size = 0;
+        deleteContents();
+      }
+    }
+    rebuildJournal();
+  }
+
+  private void readJournal(File journal) throws IOException
+  {
+    BufferedReader reader = new BufferedReader(new FileReader(journal));
+    try
+    {
+      if (!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine()) || !"".equals(reader.readLine()))
+      {
+        throw new IOException("Unexpected journal header");
+      }
+      String line;
+      while ((line = reader.readLine()) != null)
+      {
+        String[] parts = line.split(" ");
+        if (parts.length < 2)
+        {
+          // Truncated by a crash while appending, ignore the tail
+          break;
+        }
+        String key = parts[1];
+        if (CLEAN.equals(parts[0]) && parts.length == 3)
+        {
+          long length = Long.parseLong(parts[2]);
+          Long previous = m_entries.put(key, length);
+          if (previous != null)
+          {
+            m_size -= previous;
+            m_redundantOpCount++;
+          }
+          m_size += length;
+        }
+        else if (READ.equals(parts[0]))
+        {
+          m_entries.get(key);
+          m_redundantOpCount++;
+        }
+        else if (REMOVE.equals(parts[0]))
+        {
+          Long previous = m_entries.remove(key);
+          if (previous != null)
+          {
+            m_size -= previous;
+          }
+          m_redundantOpCount += 2;
+        }
+        else
+        {
+          break;
+        }
+      }
+    }
+    catch (NumberFormatException e)
+    {
+      throw new IOException("Corrupted journal: " + e.getMessage());
+    }
+    finally
+    {
+      reader.close();
+    }
+  }
+
+  /**
+   * Deletes temporary files left by a crash and files the journal does not
+   * know about.
+   */
+  private void deleteOrphans()
+  {
+    File[] files = m_directory.listFiles();
+    if (files == null)
+    {
+      return;
+    }
+    for (File file : files)
+    {
+      String name = file.getName();
+      if (!name.equals(JOURNAL_FILE) && !m_entries.containsKey(name))
+      {
+        file.delete();
+      }
+    }
+  }
+
+  private void deleteContents()
+  {
+    File[] files = m_directory.listFiles();
+    if (files != null)
+    {
+      for (File file : files)
+      {
+        file.delete();
+      }
+    }
+  }
+
+  /**
+   * Writes a journal without redundant lines, atomically replacing the current
+   * one.
+   */
+  private void rebuildJournal() throws IOException
+  {
+    if (m_journalWriter != null)
+    {
+      m_journalWriter.close();
+    }
+    File journalTmp = new File(m_directory, JOURNAL_FILE_TMP);
+    Writer writer = new BufferedWriter(new FileWriter(journalTmp));
+    try
+    {
+      writer.write(MAGIC + "\n" + VERSION + "\n\n");
+      for (Map.Entry<String, Long> entry : m_entries.entrySet())
+      {
+        writer.write(CLEAN + " " + entry.getKey() + " " + entry.getValue() + "\n");
+      }
+    }
+    finally
+    {
+      writer.close();
+    }
+    File journal = new File(m_directory, JOURNAL_FILE);
+    if (!journalTmp.renameTo(journal))
+    {
+      throw new IOException("Cannot rename " + journalTmp + " to " + journal);
+    }
+    m_journalWriter = new BufferedWriter(new FileWriter(journal, true));
+    m_redundantOpCount = 0;
+  }
+
+  private void journal(String op, String key, long length) throws IOException
+  {
+    if (!CLEAN.equals(op))
+    {
+      m_redundantOpCount++;
+    }
+    m_journalWriter.write(length < 0 ? op + " " + key + "\n" : op + " " + key + " " + length + "\n");
+    m_journalWriter.flush();
+    if (m_redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD && m_redundantOpCount >= m_entries.size())
+    {
+      rebuildJournal();
+    }
+  }
+
+  private void removeEntry(String key) throws IOException
+  {
+    Long length = m_entries.remove(key);
+    if (length != null)
+    {
+      m_size -= length;
+      new File(m_directory, key).delete();
+      journal(REMOVE, key, -1);
+    }
+  }
+
+  private void trimToSize() throws IOException
+  {
+    while (m_size > m_maxSize && !m_entries.isEmpty())
+    {
+      // Access ordered, so the first key is the least recently used one
+      removeEntry(m_entries.keySet().iterator().next());
+    }
+  }
+
+  /**
+   * @return A file name safe key for this URL.
+   */
+  static String keyFor(String url)
+  {
+    try
+    {
+      MessageDigest digest = MessageDigest.getInstance("MD5");
+      byte[] hash = digest.digest(url.getBytes("UTF-8"));
+      StringBuilder key = new StringBuilder(hash.length * 2);
+      for (byte b : hash)
+      {
+        key.append(Character.forDigit((b >> 4) & 0xf, 16));
+        key.append(Character.forDigit(b & 0xf, 16));
+      }
+      return key.toString();
+    }
+    catch (NoSuchAlgorithmException e)
+    {
+      throw new AssertionError(e);
+    }
+    catch (IOException e)
+    {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -11,159 +11,510 @@
 
 package kr.infli;
 
-import java.io.FilterInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Arrays;
+import java.util.WeakHashMap;
 import java.util.concurrent.Executor;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
-import android.net.http.AndroidHttpClient;
-import android.os.AsyncTask;
 import android.os.Handler;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
-import android.widget.ImageView;
-
-import com.googlecode.flickrjandroid.photos.Photo;
 
 public class InflikrDownloader
 {
   static final String LOG_TAG = "InflikrDownloader";
 
-  private Executor m_executor = new ThreadPoolExecutor(1, 5, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(100));
-  private Executor m_hiResExecutor = new ThreadPoolExecutor(10, 20, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(100));
+  // Downloads running at the same time, as many as the connections to one host
+  private static final int DOWNLOAD_THREADS = 6;
+  private static final int MAX_QUEUED_DOWNLOADS = 100;
 
-  public enum Mode
+  // All the downloads, the visible thumbnails first
+  private final InflikrScheduler m_scheduler = new InflikrScheduler(DOWNLOAD_THREADS, MAX_QUEUED_DOWNLOADS, new ThreadFactory()
   {
-    NO_ASYNC_TASK, NO_DOWNLOADED_DRAWABLE, CORRECT
-  }
+    private final AtomicInteger m_count = new AtomicInteger();
+
+    public Thread newThread(final Runnable runnable)
+    {
+      return new Thread(new Runnable()
+      {
+        public void run()
+        {
+          // Leave the CPU to the UI thread while scrolling
+          Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+          runnable.run();
+        }
+      }, "InflikrDownloader #" + m_count.incrementAndGet());
+    }
+  });
+  // Weight of the last download in the average download duration
+  private static final float DOWNLOAD_DURATION_SMOOTHING = 0.2f;
 
-  private Mode m_mode = Mode.CORRECT;
+  // Average duration of a network download, 0 until the first one completes
+  private volatile float m_averageDownloadMillis;
+
+  // Fed by every network download
+  private final InflikrBandwidthMeter m_bandwidthMeter = new InflikrBandwidthMeter();
+
+  // Hit ratios, latencies and waste, for the dumps
+  private final InflikrMetrics m_metrics = new InflikrMetrics();
+
+  // The hi-res image is only downloaded if the row still shows the photo after that delay
+  private static final int HIRES_DELAY = 500; // in milliseconds
+
+  private final Handler m_uiHandler = new Handler();
+
+  // A hi-res upgrade shows what it received so far, decoded at most that often
+  private static final int PARTIAL_DECODE_INTERVAL = 150; // in milliseconds
+  private static final int PARTIAL_DECODE_MIN_BYTES = 16 * 1024;
+
+  // Shared by all the download threads, keeps the connections alive between images
+  private final InflikrTransport m_transport;
+
+  // One fetch in flight per URL and size, shared by all the targets waiting for it
+  private final InflikrFetchRegistry<BitmapKey, Bitmap> m_fetches = new InflikrFetchRegistry<BitmapKey, Bitmap>(new InflikrFetchRegistry.Fetcher<BitmapKey, Bitmap>()
+  {
+    public Bitmap fetch(BitmapKey key, InflikrFetchRegistry<BitmapKey, Bitmap>.Fetch fetch)
+    {
+      m_metrics.m_queueDepth.record(m_scheduler.getQueueSize());
+      Bitmap bitmap = loadBitmap(key, fetch);
+      if (bitmap != null)
+      {
+        // Not reusable until delivered, even if evicted from the cache meanwhile
+        m_bitmapPool.retain(bitmap);
+        addBitmapToCache(key, bitmap);
+      }
+      return bitmap;
+    }
+
+    public void onDelivered(BitmapKey key, Bitmap bitmap)
+    {
+      if (bitmap != null)
+      {
+        m_bitmapPool.release(bitmap);
+      }
+    }
+  }, m_scheduler, new Executor()
+  {
+    public void execute(Runnable command)
+    {
+      m_uiHandler.post(command);
+    }
+  });
 
   private Context m_context;
   
   public InflikrDownloader(Context context)
   {
-    this.m_context = context;
+    this(context, new InflikrHttpTransport());
+  }
+
+  /**
+   * @param transport
+   *          Where the images are downloaded from, owned by the downloader.
+   */
+  public InflikrDownloader(Context context, InflikrTransport transport)
+  {
+    this.m_transport = transport;
+    // Outlives the activities, must not hold one
+    this.m_context = context.getApplicationContext();
+    ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+    int budget = activityManager.getMemoryClass() * 1024 * 1024 / MEMORY_CACHE_FRACTION;
+    m_bitmapCache = new InflikrMemoryCache<BitmapKey, Bitmap>(budget, new InflikrMemoryCache.Weigher<Bitmap>()
+    {
+      public int weightOf(Bitmap bitmap)
+      {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+      }
+    }, new InflikrMemoryCache.RemovalListener<BitmapKey, Bitmap>()
+    {
+      public void onRemoved(BitmapKey key, Bitmap bitmap)
+      {
+        m_bitmapPool.release(bitmap);
+      }
+    });
+    m_bitmapPool = new InflikrBitmapPool(budget / BITMAP_POOL_FRACTION);
+    initDiskCache(m_context);
+  }
+
+  private static synchronized void initDiskCache(Context context)
+  {
+    if (m_sDiskCache == null)
+    {
+      // Opened lazily by the first download task, out of the UI thread
+      m_sDiskCache = new InflikrDiskCache(new File(context.getCacheDir(), DISK_CACHE_DIRECTORY), DISK_CACHE_SIZE);
+    }
+  }
+
+  /**
+   * Streams the image into the disk cache, unless it is there already, without
+   * holding its bytes in memory. For the images too large to be decoded whole.
+   * The entry is opened under the cache lock, an eviction cannot delete it
+   * before it is read. Must not be called from the UI thread.
+   * 
+   * @return The stream of the image in the disk cache, to be closed by the
+   *         caller, or null if an error occurs.
+   */
+  static InputStream openFromDiskCache(Context context, InflikrTransport transport, String url)
+  {
+    initDiskCache(context.getApplicationContext());
+    try
+    {
+      InputStream cached = m_sDiskCache.getStream(url);
+      if (cached != null)
+      {
+        return cached;
+      }
+    }
+    catch (IOException e)
+    {
+      Log.w(LOG_TAG, "Error while reading " + url + " from the disk cache", e);
+    }
+
+    InflikrTransport.Request request = transport.newRequest(url);
+    try
+    {
+      InflikrTransport.Response response = request.execute();
+      try
+      {
+        final int statusCode = response.getStatusCode();
+        if (statusCode != HttpStatus.SC_OK)
+        {
+          Log.w(LOG_TAG, "Error " + statusCode + " while retrieving bitmap from " + url);
+          return null;
+        }
+        InputStream in = response.getContent();
+        try
+        {
+          return m_sDiskCache.putStream(url, in);
+        }
+        finally
+        {
+          in.close();
+        }
+      }
+      finally
+      {
+        response.close();
+      }
+    }
+    catch (IOException e)
+    {
+      request.abort();
+      Log.w(LOG_TAG, "I/O error while retrieving bitmap from " + url, e);
+    }
+    catch (IllegalStateException e)
+    {
+      request.abort();
+      Log.w(LOG_TAG, "Incorrect URL: " + url);
+    }
+    return null;
+  }
+
+  /**
+   * Releases the pooled connections and stops the download threads. The
+   * downloader must not be used anymore.
+   */
+  public void close()
+  {
+    cancelHiResUpgrades();
+    m_scheduler.shutdownNow();
+    m_transport.shutdown();
   }
 
   /**
    * Download the specified image from the Internet and binds it to the provided
-   * ImageView. The binding is immediate if the image is found in the cache and
+   * target. The binding is immediate if the image is found in the cache and
    * will be done asynchronously otherwise. A null bitmap will be associated to
-   * the ImageView if an error occurs.
+   * the target if an error occurs.
    * 
    * @param url
    *          The URL of the image to download.
-   * @param imageView
-   *          The ImageView to bind the downloaded image to.
+   * @param target
+   *          The target to bind the downloaded image to.
+   * @param photo
+   *          For a hi-res upgrade, what the target must still show when it
+   *          starts, equal to its tag. Null otherwise.
    */
-  public void download(String url, ImageView imageView, Photo photo)
+  public void download(String url, InflikrImageTarget target, Object photo)
+  {
+    download(url, target, photo, 0, 0);
+  }
+
+  /**
+   * Same as download but the image is decoded for the given size, which is
+   * part of the cache key.
+   * 
+   * @param targetWidth
+   *          The width the image is displayed at, 0 if unknown.
+   * @param targetHeight
+   *          The height the image is displayed at, 0 if unknown.
+   */
+  public void download(String url, InflikrImageTarget target, Object photo, int targetWidth, int targetHeight)
+  {
+    download(url, target, photo, targetWidth, targetHeight, photo == null ? InflikrScheduler.Priority.THUMBNAIL : InflikrScheduler.Priority.HIRES);
+  }
+
+  /**
+   * Same as download, the image is scheduled with the given priority if it has
+   * to be downloaded.
+   */
+  public void download(String url, InflikrImageTarget target, Object photo, int targetWidth, int targetHeight, InflikrScheduler.Priority priority)
   {
     resetPurgeTimer();
-    Bitmap bitmap = getBitmapFromCache(url);
+    // State sanity: url is guaranteed to never be null in DownloadedDrawable
+    // and cache keys.
+    if (url == null)
+    {
+      cancelHiResUpgrade(target, null, null);
+      unbind(target, null);
+      return;
+    }
+    BitmapKey key = new BitmapKey(url, targetWidth, targetHeight);
+    // The view is rebound, unless it is asked again for the same upgrade
+    cancelHiResUpgrade(target, key, photo);
+    Bitmap bitmap = getBitmapFromCache(key);
 
-    if (bitmap == null)
+    // Evicted and released by everybody since, it may be decoded into already
+    if (bitmap == null || !m_bitmapPool.tryRetain(bitmap))
     {
+      m_metrics.m_memoryMisses.incrementAndGet();
       try
       {
-        forceDownload(url, imageView, photo);
+        forceDownload(key, target, photo, priority);
       }
       catch (Exception e)
       {
+        m_metrics.m_rejectedDownloads.incrementAndGet();
         Log.w(LOG_TAG, "Error while sending download task for " + url, e);
       }
     }
     else
     {
-      cancelPotentialDownload(url, imageView);
-      imageView.setImageBitmap(bitmap);
+      m_metrics.m_memoryHits.incrementAndGet();
+      m_metrics.m_bindLatency.record(0);
+      cancelPotentialDownload(key, target);
+      bindRetained(target, bitmap);
     }
   }
 
-  /*
-   * Same as download but the image is always downloaded and the cache is not
-   * used. Kept private at the moment as its interest is not clear. private void
-   * forceDownload(String url, ImageView view) { forceDownload(url, view, null);
-   * }
+  /**
+   * Loads the image into the memory and disk caches at the prefetch priority,
+   * with no target to bind it to.
+   * 
+   * @return The subscription, to cancel the prefetch, or null if the image is
+   *         already in the memory cache.
    */
+  InflikrFetchRegistry<?, ?>.Subscription prefetch(String url, int targetWidth, int targetHeight)
+  {
+    if (url == null)
+    {
+      return null;
+    }
+    BitmapKey key = new BitmapKey(url, targetWidth, targetHeight);
+    if (getBitmapFromCache(key) != null)
+    {
+      return null;
+    }
+    try
+    {
+      return m_fetches.subscribe(key, PREFETCH_SUBSCRIBER, InflikrScheduler.Priority.PREFETCH);
+    }
+    catch (Exception e)
+    {
+      m_metrics.m_rejectedDownloads.incrementAndGet();
+      Log.w(LOG_TAG, "Error while sending prefetch task for " + url, e);
+      return null;
+    }
+  }
+
+  // The fetcher caches the image, nothing more to do with it
+  private static final InflikrFetchRegistry.Subscriber<Bitmap> PREFETCH_SUBSCRIBER = new InflikrFetchRegistry.Subscriber<Bitmap>()
+  {
+    public void onFetched(Bitmap bitmap)
+    {}
+  };
 
   /**
-   * Same as download but the image is always downloaded and the cache is not
-   * used. Kept private at the moment as its interest is not clear.
-   * @param photo 
+   * @return The number of images which can be downloaded per second, measured
+   *         on the last downloads, or 0 if nothing was downloaded yet.
    */
-  private void forceDownload(String url, ImageView imageView, Photo photo)
+  public float getDownloadRate()
   {
-    // State sanity: url is guaranteed to never be null in DownloadedDrawable
-    // and cache keys.
-    if (url == null)
+    float averageDownloadMillis = m_averageDownloadMillis;
+    return averageDownloadMillis <= 0 ? 0 : DOWNLOAD_THREADS * 1000f / averageDownloadMillis;
+  }
+
+  /**
+   * @return The bandwidth measured on the downloads, for the size policy.
+   */
+  public InflikrBandwidthMeter getBandwidthMeter()
+  {
+    return m_bandwidthMeter;
+  }
+
+  public InflikrMetrics getMetrics()
+  {
+    return m_metrics;
+  }
+
+  InflikrBitmapPool getBitmapPool()
+  {
+    return m_bitmapPool;
+  }
+
+  /**
+   * @return The bitmap cached for this URL and size, null if there is none.
+   */
+  Bitmap getCachedBitmap(String url, int targetWidth, int targetHeight)
+  {
+    return getBitmapFromCache(new BitmapKey(url, targetWidth, targetHeight));
+  }
+
+  /**
+   * @return The metrics now, with the state of the download queue.
+   */
+  public InflikrMetrics.Snapshot getMetricsSnapshot()
+  {
+    return m_metrics.snapshot(m_scheduler.getQueueSize(), m_scheduler.getDroppedCount());
+  }
+
+  private synchronized void recordDownloadDuration(long millis)
+  {
+    float duration = Math.max(1, millis);
+    m_averageDownloadMillis = m_averageDownloadMillis <= 0 ? duration : m_averageDownloadMillis + DOWNLOAD_DURATION_SMOOTHING * (duration - m_averageDownloadMillis);
+  }
+
+  /**
+   * Displays the bitmap, the target becomes one of its users so it is not
+   * reused while displayed. The previous bitmap of the view is released.
+   */
+  private void bind(InflikrImageTarget target, Bitmap bitmap)
+  {
+    if (bitmap != null)
     {
-      imageView.setImageDrawable(null);
-      return;
+      m_bitmapPool.retain(bitmap);
     }
-    Mode currentMode = photo == null ? Mode.CORRECT : Mode.NO_DOWNLOADED_DRAWABLE;
-    if (currentMode == Mode.NO_DOWNLOADED_DRAWABLE || cancelPotentialDownload(url, imageView))
+    bindRetained(target, bitmap);
+  }
+
+  /**
+   * Same as bind for a bitmap already retained on behalf of the target.
+   */
+  private void bindRetained(InflikrImageTarget target, Bitmap bitmap)
+  {
+    target.setImageBitmap(bitmap);
+    Bitmap previous = bitmap == null ? m_boundBitmaps.remove(target) : m_boundBitmaps.put(target, bitmap);
+    if (previous != null)
     {
-      switch (currentMode)
-      {
-        case NO_ASYNC_TASK:
-          Bitmap bitmap = downloadBitmap(url);
-          addBitmapToCache(url, bitmap);
-          imageView.setImageBitmap(bitmap);
-          break;
+      m_bitmapPool.release(previous);
+    }
+  }
 
-        case NO_DOWNLOADED_DRAWABLE:
-          imageView.setMinimumHeight(156);
-          BitmapDownloaderTask task = new BitmapDownloaderTask(imageView, photo);
-          task.executeOnExecutor(m_hiResExecutor, url);
-          break;
+  /**
+   * Displays a drawable which is not a pooled bitmap, releasing the previous
+   * bitmap of the view.
+   */
+  private void unbind(InflikrImageTarget target, Drawable drawable)
+  {
+    target.setImageDrawable(drawable);
+    Bitmap previous = m_boundBitmaps.remove(target);
+    if (previous != null)
+    {
+      m_bitmapPool.release(previous);
+    }
+  }
 
-        case CORRECT:
-          task = new BitmapDownloaderTask(imageView, null);
-          DownloadedDrawable downloadedDrawable = new DownloadedDrawable(task);
-          imageView.setImageDrawable(downloadedDrawable);
-          imageView.setMinimumHeight(156);
-          task.executeOnExecutor(m_executor, url);
-          break;
+  /**
+   * Downloads the image missing from the memory cache. A hi-res upgrade keeps
+   * the current image until it is received, the other downloads show the
+   * placeholder meanwhile.
+   *
+   * @param photo
+   *          What the target must still show for a hi-res upgrade, null for a
+   *          plain download.
+   */
+  private void forceDownload(BitmapKey key, InflikrImageTarget target, Object photo, InflikrScheduler.Priority priority)
+  {
+    if (photo != null)
+    {
+      if (m_hiResTasks.containsKey(target))
+      {
+        // The same upgrade is already waiting or downloading
+        return;
       }
+      BitmapDownloaderTask hiResTask = new BitmapUpgradeTask(key, target, photo, priority);
+      m_hiResTasks.put(target, hiResTask);
+      hiResTask.startAfterDelay();
+    }
+    else if (cancelPotentialDownload(key, target))
+    {
+      BitmapDownloaderTask task = new BitmapDownloaderTask(key, target, null, priority);
+      DownloadedDrawable downloadedDrawable = new DownloadedDrawable(task);
+      unbind(target, downloadedDrawable);
+      task.start();
+    }
+  }
+
+  /**
+   * Cancels all the hi-res upgrades, for instance when the views are gone.
+   * The other downloads carry on and the new views attach to them.
+   */
+  public void cancelHiResUpgrades()
+  {
+    for (BitmapDownloaderTask hiResTask : m_hiResTasks.values())
+    {
+      hiResTask.cancel();
+    }
+    m_hiResTasks.clear();
+  }
+
+  /**
+   * Cancels the hi-res upgrade of this target, waiting or downloading,
+   * unless it is for this key and photo.
+   */
+  private void cancelHiResUpgrade(InflikrImageTarget target, BitmapKey key, Object photo)
+  {
+    BitmapDownloaderTask hiResTask = m_hiResTasks.get(target);
+    if (hiResTask != null && (photo == null || !photo.equals(hiResTask.m_photo) || !hiResTask.m_key.equals(key)))
+    {
+      m_hiResTasks.remove(target);
+      hiResTask.cancel();
     }
   }
 
   /**
    * Returns true if the current download has been canceled or if there was no
-   * download in progress on this image view. Returns false if the download in
-   * progress deals with the same url. The download is not stopped in that case.
+   * download in progress on this target. Returns false if the download in
+   * progress deals with the same url and size. The download is not stopped in
+   * that case.
    */
-  private static boolean cancelPotentialDownload(String url, ImageView imageView)
+  private static boolean cancelPotentialDownload(BitmapKey key, InflikrImageTarget target)
   {
-    BitmapDownloaderTask bitmapDownloaderTask = getBitmapDownloaderTask(imageView);
+    BitmapDownloaderTask bitmapDownloaderTask = getBitmapDownloaderTask(target);
 
     if (bitmapDownloaderTask != null)
     {
-      String bitmapUrl = bitmapDownloaderTask.m_url;
-      if ((bitmapUrl == null) || (!bitmapUrl.equals(url)))
+      BitmapKey bitmapKey = bitmapDownloaderTask.m_key;
+      if (!bitmapKey.equals(key))
       {
-        bitmapDownloaderTask.cancel(true);
+        bitmapDownloaderTask.cancel();
       }
       else
       {
@@ -175,16 +526,16 @@ public class InflikrDownloader
   }
 
   /**
-   * @param imageView
-   *          Any imageView
+   * @param target
+   *          Any target
    * @return Retrieve the currently active download task (if any) associated
-   *         with this imageView. null if there is no such task.
+   *         with this target. null if there is no such task.
    */
-  private static BitmapDownloaderTask getBitmapDownloaderTask(ImageView imageView)
+  private static BitmapDownloaderTask getBitmapDownloaderTask(InflikrImageTarget target)
   {
-    if (imageView != null)
+    if (target != null)
     {
-      Drawable drawable = imageView.getDrawable();
+      Drawable drawable = target.getDrawable();
       if (drawable instanceof DownloadedDrawable)
       {
         DownloadedDrawable downloadedDrawable = (DownloadedDrawable) drawable;
@@ -194,207 +545,531 @@ public class InflikrDownloader
     return null;
   }
 
-  Bitmap downloadBitmap(String url)
+  /**
+   * Reads the image from the disk cache or downloads it, then decodes it for
+   * the size of the key. Must not be called from the UI thread.
+   * 
+   * @param fetch
+   *          The fetch this load is done for, the download is aborted if it is
+   *          cancelled. Can be null.
+   */
+  Bitmap loadBitmap(BitmapKey key, InflikrFetchRegistry<BitmapKey, Bitmap>.Fetch fetch)
   {
+    byte[] data = getBytesFromDiskCache(key.m_url);
+    if (data != null)
+    {
+      m_metrics.m_diskHits.incrementAndGet();
+      Bitmap bitmap = decodeBitmap(data, key.m_width, key.m_height);
+      if (bitmap != null)
+      {
+        return bitmap;
+      }
+      // Not decodable, do not keep it
+      removeFromDiskCache(key.m_url);
+    }
+    m_metrics.m_diskMisses.incrementAndGet();
+    data = downloadBytes(key.m_url, fetch, fetch == null ? null : new PartialDecoder(key, fetch));
+    return data == null ? null : decodeBitmap(data, key.m_width, key.m_height);
+  }
 
-    // AndroidHttpClient is not allowed to be used from the main thread
-    final HttpClient client = (m_mode == Mode.NO_ASYNC_TASK) ? new DefaultHttpClient() : AndroidHttpClient.newInstance("Android");
-    final HttpGet getRequest = new HttpGet(url);
+  /**
+   * Decodes the image with the largest power of two sample size which still
+   * covers the target size once the image fits in it. JPEG images have no
+   * alpha and are decoded in RGB_565, half the memory of ARGB_8888. A free
+   * bitmap of the pool is decoded into when there is one of the same size.
+   * 
+   * @return The bitmap or null if the data is not an image.
+   */
+  Bitmap decodeBitmap(byte[] data, int targetWidth, int targetHeight)
+  {
+    long start = SystemClock.uptimeMillis();
+    try
+    {
+      return decodeBitmap(data, targetWidth, targetHeight, new BitmapFactory.Options());
+    }
+    finally
+    {
+      m_metrics.m_decodeTime.record(SystemClock.uptimeMillis() - start);
+    }
+  }
 
+  private Bitmap decodeBitmap(byte[] data, int targetWidth, int targetHeight, BitmapFactory.Options options)
+  {
+    // Reads the header only
+    options.inJustDecodeBounds = true;
+    BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    if (options.outWidth <= 0 || options.outHeight <= 0)
+    {
+      return null;
+    }
+    options.inJustDecodeBounds = false;
+    options.inSampleSize = sampleSize(options.outWidth, options.outHeight, targetWidth, targetHeight);
+    options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+    if ("image/jpeg".equals(options.outMimeType))
+    {
+      options.inPreferredConfig = Bitmap.Config.RGB_565;
+      options.inDither = true;
+    }
+    // Mutable so it can be decoded into again once released
+    options.inMutable = true;
+    if (options.inSampleSize == 1)
+    {
+      // Until Jelly Bean MR2 only a same size, non sampled decode can reuse a bitmap
+      options.inBitmap = m_bitmapPool.get(options.outWidth, options.outHeight, options.inPreferredConfig);
+      (options.inBitmap != null ? m_metrics.m_poolHits : m_metrics.m_poolMisses).incrementAndGet();
+    }
     try
     {
-      HttpResponse response = client.execute(getRequest);
-      final int statusCode = response.getStatusLine().getStatusCode();
-      if (statusCode != HttpStatus.SC_OK)
+      // Bug on slow connections, fixed in future release.
+      return BitmapFactory.decodeStream(new InflikrFlushedInputStream(new ByteArrayInputStream(data)), null, options);
+    }
+    catch (IllegalArgumentException e)
+    {
+      // The pooled bitmap cannot be reused for this image, it is still free
+      Log.w(LOG_TAG, "Cannot decode into a pooled bitmap", e);
+      if (options.inBitmap != null)
       {
-        Log.w(LOG_TAG, "Error " + statusCode + " while retrieving bitmap from " + url);
-        return null;
+        m_bitmapPool.put(options.inBitmap);
       }
+      options.inBitmap = null;
+      return BitmapFactory.decodeStream(new InflikrFlushedInputStream(new ByteArrayInputStream(data)), null, options);
+    }
+  }
 
-      final HttpEntity entity = response.getEntity();
-      if (entity != null)
+  /**
+   * @return The largest power of two the image can be sub-sampled with and
+   *         still be at least as large as the target when it fits in it. 1 if
+   *         the target size is unknown.
+   */
+  static int sampleSize(int width, int height, int targetWidth, int targetHeight)
+  {
+    float ratio;
+    if (targetWidth <= 0 && targetHeight <= 0)
+    {
+      return 1;
+    }
+    else if (targetWidth <= 0)
+    {
+      ratio = (float) height / targetHeight;
+    }
+    else if (targetHeight <= 0)
+    {
+      ratio = (float) width / targetWidth;
+    }
+    else
+    {
+      // Fitting scales by the smallest factor, so the largest ratio decides
+      ratio = Math.max((float) width / targetWidth, (float) height / targetHeight);
+    }
+    int sampleSize = 1;
+    while (sampleSize * 2 <= ratio)
+    {
+      sampleSize *= 2;
+    }
+    return sampleSize;
+  }
+
+  /**
+   * Follows the bytes of a download as they are received, called on the
+   * download thread.
+   */
+  interface DownloadProgress
+  {
+    /**
+     * @param total
+     *          The length of the image, -1 if the server did not tell.
+     */
+    void onBytes(byte[] data, int count, int total);
+  }
+
+  /**
+   * Decodes the bytes received so far for the hi-res upgrades waiting for the
+   * fetch, so they show the image before its last bytes. Nothing is decoded if
+   * no target shows the progress, or if the image is neither progressive nor of
+   * a known length.
+   */
+  private class PartialDecoder implements DownloadProgress
+  {
+    private final BitmapKey m_key;
+    private final InflikrFetchRegistry<BitmapKey, Bitmap>.Fetch m_fetch;
+    private InflikrJpegHeader m_header;
+    private long m_lastDecodeTime;
+    private int m_lastDecodeCount;
+
+    PartialDecoder(BitmapKey key, InflikrFetchRegistry<BitmapKey, Bitmap>.Fetch fetch)
+    {
+      this.m_key = key;
+      this.m_fetch = fetch;
+    }
+
+    public void onBytes(byte[] data, int count, int total)
+    {
+      if (!InflikrJpegHeader.mayBeJpeg(data, count) || !m_fetch.hasProgressSubscribers())
       {
-        InputStream inputStream = null;
-        try
+        return;
+      }
+      if (m_header == null)
+      {
+        m_header = InflikrJpegHeader.parse(data, count);
+        if (m_header == null)
         {
-          inputStream = entity.getContent();
-          // return BitmapFactory.decodeStream(inputStream);
-          // Bug on slow connections, fixed in future release.
-          return BitmapFactory.decodeStream(new FlushedInputStream(inputStream));
+          return;
         }
-        finally
+        m_lastDecodeCount = m_header.m_scanStart;
+      }
+      long now = SystemClock.uptimeMillis();
+      if (count - m_lastDecodeCount < PARTIAL_DECODE_MIN_BYTES || now - m_lastDecodeTime < PARTIAL_DECODE_INTERVAL)
+      {
+        return;
+      }
+      float fraction = m_header.m_progressive ? 1 : total > 0 ? m_header.decodedFraction(count, total) : 0;
+      if (fraction <= 0)
+      {
+        return;
+      }
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      // Twice smaller than the final one, it is shown for a moment only
+      options.inSampleSize = 2 * sampleSize(m_header.m_width, m_header.m_height, m_key.m_width, m_key.m_height);
+      options.inPreferredConfig = Bitmap.Config.RGB_565;
+      Bitmap partial = BitmapFactory.decodeByteArray(data, 0, count, options);
+      m_lastDecodeTime = SystemClock.uptimeMillis();
+      m_lastDecodeCount = count;
+      if (partial != null)
+      {
+        m_fetch.publish(partial, fraction);
+      }
+    }
+  }
+
+  /**
+   * Downloads the image and stores it in the disk cache.
+   * 
+   * @param fetch
+   *          The fetch this download is done for, the request is aborted if it
+   *          is cancelled. Can be null.
+   * @param progress
+   *          Told about the bytes as they are received. Can be null.
+   * @return The bytes of the image or null if an error occurs.
+   */
+  byte[] downloadBytes(String url, InflikrFetchRegistry<BitmapKey, Bitmap>.Fetch fetch, DownloadProgress progress)
+  {
+    final InflikrTransport.Request request = m_transport.newRequest(url);
+    if (fetch != null)
+    {
+      fetch.setCancelAction(new Runnable()
+      {
+        public void run()
         {
-          if (inputStream != null)
-          {
-            inputStream.close();
-          }
-          entity.consumeContent();
+          request.abort();
+        }
+      });
+    }
+
+    try
+    {
+      long start = SystemClock.uptimeMillis();
+      InflikrTransport.Response response = request.execute();
+      try
+      {
+        m_metrics.m_timeToFirstByte.record(SystemClock.uptimeMillis() - start);
+        final int statusCode = response.getStatusCode();
+        if (statusCode != HttpStatus.SC_OK)
+        {
+          m_metrics.m_downloadErrors.incrementAndGet();
+          Log.w(LOG_TAG, "Error " + statusCode + " while retrieving bitmap from " + url);
+          return null;
         }
+
+        // Keep the bytes, they go to the disk cache as well as to the decoder
+        byte[] data = readContent(response, progress);
+        long duration = SystemClock.uptimeMillis() - start;
+        recordDownloadDuration(duration);
+        m_bandwidthMeter.record(data.length, duration);
+        m_metrics.m_downloadTime.record(duration);
+        m_metrics.m_bytesFetched.addAndGet(data.length);
+        addBytesToDiskCache(url, data);
+        return data;
+      }
+      finally
+      {
+        // Gives the connection back to the pool
+        response.close();
       }
     }
     catch (IOException e)
     {
-      getRequest.abort();
-      Log.w(LOG_TAG, "I/O error while retrieving bitmap from " + url, e);
+      request.abort();
+      if (fetch != null && fetch.isCancelled())
+      {
+        m_metrics.m_wastedDownloads.incrementAndGet();
+        Log.i(LOG_TAG, "Cancelled " + url);
+      }
+      else
+      {
+        m_metrics.m_downloadErrors.incrementAndGet();
+        Log.w(LOG_TAG, "I/O error while retrieving bitmap from " + url, e);
+      }
     }
     catch (IllegalStateException e)
     {
-      getRequest.abort();
+      request.abort();
+      m_metrics.m_downloadErrors.incrementAndGet();
       Log.w(LOG_TAG, "Incorrect URL: " + url);
     }
     catch (Exception e)
     {
-      getRequest.abort();
+      request.abort();
+      m_metrics.m_downloadErrors.incrementAndGet();
       Log.w(LOG_TAG, "Error while retrieving bitmap from " + url, e);
     }
-    finally
-    {
-      if ((client instanceof AndroidHttpClient))
-      {
-        ((AndroidHttpClient) client).close();
-      }
-    }
     return null;
   }
 
-  /*
-   * An InputStream that skips the exact number of bytes provided, unless it
-   * reaches EOF.
+  /**
+   * Reads the whole content, telling the progress after each read.
+   *
+   * @throws IOException
+   *           If the content ends before its announced length.
    */
-  static class FlushedInputStream extends FilterInputStream
+  private static byte[] readContent(InflikrTransport.Response response, DownloadProgress progress) throws IOException
   {
-    public FlushedInputStream(InputStream inputStream)
-    {
-      super(inputStream);
-    }
-
-    @Override
-    public long skip(long n) throws IOException
+    long length = response.getContentLength();
+    int total = length > 0 && length <= Integer.MAX_VALUE ? (int) length : -1;
+    byte[] data = new byte[total > 0 ? total : 16 * 1024];
+    int count = 0;
+    InputStream in = response.getContent();
+    try
     {
-      long totalBytesSkipped = 0L;
-      while (totalBytesSkipped < n)
+      int read;
+      while ((read = in.read(data, count, data.length - count)) != -1)
       {
-        long bytesSkipped = in.skip(n - totalBytesSkipped);
-        if (bytesSkipped == 0L)
+        count += read;
+        if (count == total)
         {
-          int b = read();
-          if (b < 0)
-          {
-            break; // we reached EOF
-          }
-          else
-          {
-            bytesSkipped = 1; // we read one byte
-          }
+          break;
+        }
+        if (count == data.length)
+        {
+          data = Arrays.copyOf(data, data.length * 2);
+        }
+        if (progress != null && read > 0)
+        {
+          progress.onBytes(data, count, total);
         }
-        totalBytesSkipped += bytesSkipped;
       }
-      return totalBytesSkipped;
     }
+    finally
+    {
+      in.close();
+    }
+    if (total > 0 && count < total)
+    {
+      // The connection dropped, the image must not be cached
+      throw new IOException("Received " + count + " of " + total + " bytes");
+    }
+    return count == data.length ? data : Arrays.copyOf(data, count);
   }
 
   /**
-   * The actual AsyncTask that will asynchronously download the image.
+   * The download of an image for one target. The targets waiting for
+   * the same URL share the same fetch, the download is only cancelled when all
+   * their tasks are.
    */
-  class BitmapDownloaderTask extends AsyncTask<String, Void, Bitmap>
+  class BitmapDownloaderTask implements InflikrFetchRegistry.Subscriber<Bitmap>
   {
-    private String m_url;
-    private Photo m_photo;
-    private final WeakReference<ImageView> m_imageViewReference;
+    private final BitmapKey m_key;
+    private final String m_url;
+    private final Object m_photo;
+    private final InflikrScheduler.Priority m_priority;
+    private final WeakReference<InflikrImageTarget> m_targetReference;
+    private InflikrFetchRegistry<BitmapKey, Bitmap>.Subscription m_subscription;
+    private boolean m_cancelled;
+    // When the image was asked for, for the bind latency
+    private long m_startTime;
 
-    public BitmapDownloaderTask(ImageView imageView, Photo photo)
+    public BitmapDownloaderTask(BitmapKey key, InflikrImageTarget target, Object photo, InflikrScheduler.Priority priority)
     {
-      this.m_imageViewReference = new WeakReference<ImageView>(imageView);
+      this.m_key = key;
+      this.m_url = key.m_url;
+      this.m_targetReference = new WeakReference<InflikrImageTarget>(target);
       this.m_photo = photo;
+      this.m_priority = priority;
+    }
+
+    InflikrImageTarget getTarget()
+    {
+      return m_targetReference.get();
     }
 
     /**
-     * Actual download method.
+     * @return Whether the target still shows the photo of this upgrade.
      */
-    @Override
-    protected Bitmap doInBackground(String... params)
+    boolean isShownBy(InflikrImageTarget target)
     {
-      m_url = params[0];
-      ImageView imageView = m_imageViewReference.get();
-      if(m_photo != null)
+      return m_photo.equals(target.getTag());
+    }
+
+    boolean isCancelled()
+    {
+      return m_cancelled;
+    }
+
+    /**
+     * Attaches this task to the fetch of its URL, scheduling it if needed.
+     */
+    void start()
+    {
+      m_startTime = SystemClock.uptimeMillis();
+      m_subscription = m_fetches.subscribe(m_key, this, m_priority);
+    }
+
+    /**
+     * Hi-res mode, only starts if the target is still showing the photo
+     * after a while. Nothing runs meanwhile, the start is posted to the UI
+     * thread.
+     */
+    void startAfterDelay()
+    {
+      m_uiHandler.postDelayed(m_delayedStart, HIRES_DELAY);
+    }
+
+    private final Runnable m_delayedStart = new Runnable()
+    {
+      public void run()
       {
-        try
-        {
-          Thread.sleep(500);
-        }
-        catch (InterruptedException e)
-        {}
-        if(imageView.getTag() != m_photo)
+        InflikrImageTarget target = m_targetReference.get();
+        if (target == null || !isShownBy(target))
         {
           Log.w(LOG_TAG, "Cancel before download");
-          return null;
+          if (target != null && m_hiResTasks.get(target) == BitmapDownloaderTask.this)
+          {
+            m_hiResTasks.remove(target);
+          }
+          return;
         }
+        start();
+      }
+    };
+
+    /**
+     * Detaches this task from its fetch, the target will not be updated.
+     * A delayed start that has not fired yet never will.
+     */
+    void cancel()
+    {
+      m_cancelled = true;
+      m_uiHandler.removeCallbacks(m_delayedStart);
+      if (m_subscription != null)
+      {
+        m_subscription.cancel();
       }
-      return downloadBitmap(m_url);
     }
 
     /**
-     * Once the image is downloaded, associates it to the imageView
+     * Once the image is downloaded, associates it to the target
      */
-    @Override
-    protected void onPostExecute(Bitmap bitmap)
+    public void onFetched(Bitmap bitmap)
     {
+      if (m_photo != null)
+      {
+        InflikrImageTarget target = m_targetReference.get();
+        if (target != null && m_hiResTasks.get(target) == this)
+        {
+          // Done, a later scroll stop may upgrade it again
+          m_hiResTasks.remove(target);
+        }
+      }
+
       if(bitmap == null)
       {
         Log.w(LOG_TAG, "Bitmap null : " + m_url);
         return; 
       }
 
-      
-      if(m_photo == null)
+      InflikrImageTarget target = m_targetReference.get();
+      if (target == null)
       {
-        addBitmapToCache(m_url, bitmap);
+        return;
       }
-      else
+
+      if(m_photo != null)
       {
         Log.w(LOG_TAG, "Hires mode downloaded : " + m_url);
-        if (m_imageViewReference != null)
+        if(!isShownBy(target))
         {
-          ImageView imageView = m_imageViewReference.get();
-          if(imageView.getTag() != m_photo)
-          {
-            Log.w(LOG_TAG, "Hires mode cancelled");
-            return;
-          }
-          else
-          {
-            Log.w(LOG_TAG, "Hires, replacing");
-            if(bitmap != null) imageView.setImageBitmap(bitmap);
-            return;
-          }
+          m_metrics.m_wastedDownloads.incrementAndGet();
+          Log.w(LOG_TAG, "Hires mode cancelled");
         }
+        else
+        {
+          Log.w(LOG_TAG, "Hires, replacing");
+          bind(target, bitmap);
+        }
+        return;
       }
       
-      if (isCancelled())
+      if (m_cancelled)
       {
-        bitmap = null;
+        m_metrics.m_wastedDownloads.incrementAndGet();
         Log.i(LOG_TAG, "Cancelled " + m_url);
+        return;
       }
       
-      Log.i(LOG_TAG, "Downloaded (" + m_sHardBitmapCache.size() + ") " + m_url);
+      Log.i(LOG_TAG, "Downloaded (" + m_bitmapCache.weightedSize() + "/" + m_bitmapCache.maxWeight() + " bytes) " + m_url);
 
-      if (m_imageViewReference != null)
+      BitmapDownloaderTask bitmapDownloaderTask = getBitmapDownloaderTask(target);
+      // Change bitmap only if this process is still associated with it
+      if (this == bitmapDownloaderTask)
       {
-        ImageView imageView = m_imageViewReference.get();
-        BitmapDownloaderTask bitmapDownloaderTask = getBitmapDownloaderTask(imageView);
-        // Change bitmap only if this process is still associated with it
-        // Or if we don't use any bitmap to task association
-        // (NO_DOWNLOADED_DRAWABLE mode)
-        if ((this == bitmapDownloaderTask) || (m_mode != Mode.CORRECT))
-        {
-          imageView.setImageBitmap(bitmap);
-        }
+        m_metrics.m_bindLatency.record(SystemClock.uptimeMillis() - m_startTime);
+        bind(target, bitmap);
+      }
+      else
+      {
+        // The target shows another image since
+        m_metrics.m_wastedDownloads.incrementAndGet();
       }
     }
   }
 
   /**
-   * A fake Drawable that will be attached to the imageView while the download
+   * The hi-res upgrade of a target, it shows the image while it is received
+   * over the current one. Cancelling the task stops the partial images as well.
+   */
+  class BitmapUpgradeTask extends BitmapDownloaderTask implements InflikrFetchRegistry.ProgressSubscriber<Bitmap>
+  {
+    private boolean m_partialShown;
+
+    BitmapUpgradeTask(BitmapKey key, InflikrImageTarget target, Object photo, InflikrScheduler.Priority priority)
+    {
+      super(key, target, photo, priority);
+    }
+
+    public void onProgress(Bitmap partial, float fraction)
+    {
+      InflikrImageTarget target = getTarget();
+      if (target != null && !isCancelled() && m_hiResTasks.get(target) == this && isShownBy(target))
+      {
+        target.setPartialImage(partial, fraction);
+        m_partialShown = true;
+      }
+    }
+
+    @Override
+    public void onFetched(Bitmap bitmap)
+    {
+      super.onFetched(bitmap);
+      InflikrImageTarget target = getTarget();
+      if (bitmap == null && m_partialShown && target != null && isShownBy(target))
+      {
+        // Failed, back to the thumbnail
+        target.setPartialImage(null, 0);
+      }
+    }
+  }
+
+  /**
+   * A fake Drawable that will be attached to the target while the download
    * is in progress.
    * 
    * <p>
@@ -420,44 +1095,85 @@ public class InflikrDownloader
     }
   }
 
-  public void setMode(Mode mode)
+  /**
+   * The URL of an image and the size it is decoded for.
+   */
+  static final class BitmapKey
   {
-    this.m_mode = mode;
-    clearCache();
+    final String m_url;
+    final int m_width;
+    final int m_height;
+
+    BitmapKey(String url, int width, int height)
+    {
+      this.m_url = url;
+      this.m_width = width;
+      this.m_height = height;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof BitmapKey))
+      {
+        return false;
+      }
+      BitmapKey key = (BitmapKey) o;
+      return m_width == key.m_width && m_height == key.m_height && m_url.equals(key.m_url);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return 31 * (31 * m_url.hashCode() + m_width) + m_height;
+    }
+
+    @Override
+    public String toString()
+    {
+      return m_url + " (" + m_width + "x" + m_height + ")";
+    }
   }
 
   /*
    * Cache-related fields and methods.
    * 
-   * We use a hard and a soft cache. A soft reference cache is too aggressively
-   * cleared by the Garbage Collector.
+   * We use a hard cache bounded by the bytes of its bitmaps, so a photo and a
+   * buddy icon are not accounted the same. Its hits are lock free as they are
+   * on the UI thread while the download tasks add bitmaps. There is no soft
+   * cache, a soft reference cache is too aggressively cleared by the Garbage
+   * Collector and only keeps bitmaps beyond the budget alive. Bitmaps are
+   * cached for the size they are decoded for. The hard cache is backed by a
+   * disk cache of the downloaded bytes which survives the purge and the
+   * application restarts.
    */
 
-  private static final int HARD_CACHE_CAPACITY = 25;
+  // Fraction of the application memory class given to the hard cache
+  private static final int MEMORY_CACHE_FRACTION = 8;
+
+  // Fraction of the hard cache size given to the free bitmaps of the pool
+  private static final int BITMAP_POOL_FRACTION = 2;
+
+  private static final String DISK_CACHE_DIRECTORY = "bitmaps";
+
+  private static final long DISK_CACHE_SIZE = 20 * 1024 * 1024; // in bytes
+
+  // Shared by all downloaders, it owns its directory
+  private static InflikrDiskCache m_sDiskCache;
 
   private static final int DELAY_BEFORE_PURGE = 60 * 1000; // in milliseconds
 
-  // Hard cache, with a fixed maximum capacity and a life duration
-  @SuppressWarnings("serial")
-  private final HashMap<String, Bitmap> m_sHardBitmapCache = new LinkedHashMap<String, Bitmap>(HARD_CACHE_CAPACITY / 2, 0.75f, true)
-  {
-    @Override
-    protected boolean removeEldestEntry(LinkedHashMap.Entry<String, Bitmap> eldest)
-    {
-      if (size() > HARD_CACHE_CAPACITY)
-      {
-        // Entries push-out of hard reference cache are transferred to soft
-        // reference cache
-        m_sSoftBitmapCache.put(eldest.getKey(), new SoftReference<Bitmap>(eldest.getValue()));
-        return true;
-      }
-      else
-        return false;
-    }
-  };
+  // Hard cache, with a maximum size in bytes and a life duration
+  private final InflikrMemoryCache<BitmapKey, Bitmap> m_bitmapCache;
+
+  // Bitmaps evicted from the hard cache and not displayed, to decode into
+  private final InflikrBitmapPool m_bitmapPool;
+
+  // Bitmap displayed by each target, only used from the UI thread
+  private final WeakHashMap<InflikrImageTarget, Bitmap> m_boundBitmaps = new WeakHashMap<InflikrImageTarget, Bitmap>();
 
-  // Soft cache for bitmaps kicked out of hard cache
-  private final static ConcurrentHashMap<String, SoftReference<Bitmap>> m_sSoftBitmapCache = new ConcurrentHashMap<String, SoftReference<Bitmap>>(HARD_CACHE_CAPACITY / 2);
+  // Hi-res upgrade waiting or downloading for each target, only used from the UI thread
+  private final WeakHashMap<InflikrImageTarget, BitmapDownloaderTask> m_hiResTasks = new WeakHashMap<InflikrImageTarget, BitmapDownloaderTask>();
 
   private final Handler m_purgeHandler = new Handler();
 
@@ -470,93 +1186,115 @@ public class InflikrDownloader
   };
 
   /**
-   * Adds this bitmap to the cache.
+   * Adds this bitmap to the cache, which becomes one of its users until it
+   * evicts it.
    * 
    * @param bitmap
    *          The newly downloaded bitmap.
    */
-  private void addBitmapToCache(String url, Bitmap bitmap)
+  private void addBitmapToCache(BitmapKey key, Bitmap bitmap)
   {
     if (bitmap != null)
     {
-      synchronized (m_sHardBitmapCache)
-      {
-//      // Use of Android local cache for later
-//        String filename = url.replaceAll("http:", "").replace(":", "").replace("/", "");
-//        try
-//        {
-//          File file = new File(m_context.getCacheDir(), filename);
-//          FileOutputStream fos = new FileOutputStream(new File(m_context.getCacheDir(), filename));
-//          bitmap.compress(Bitmap.CompressFormat.JPEG, 100, fos);
-//          fos.close();
-//        }
-//        catch (Exception e)
-//        {
-//          Log.w(LOG_TAG, "Error while writing bitmap to " + filename, e);
-//        }
-        m_sHardBitmapCache.put(url, bitmap);
-      }
+      // Released by the removal listener
+      m_bitmapPool.retain(bitmap);
+      m_bitmapCache.put(key, bitmap);
+    }
+  }
+
+  /**
+   * Stores the downloaded bytes in the disk cache, errors are only logged as
+   * the bitmap can still be used. Must not be called from the UI thread.
+   */
+  private void addBytesToDiskCache(String url, byte[] data)
+  {
+    try
+    {
+      m_sDiskCache.put(url, new ByteArrayInputStream(data));
+    }
+    catch (IOException e)
+    {
+      Log.w(LOG_TAG, "Error while writing " + url + " to the disk cache", e);
     }
   }
 
   /**
+   * Must not be called from the UI thread.
+   * 
    * @param url
-   *          The URL of the image that will be retrieved from the cache.
-   * @return The cached bitmap or null if it was not found.
+   *          The URL of the image that will be retrieved from the disk cache.
+   * @return The bytes of the image or null if it was not found.
    */
-  private Bitmap getBitmapFromCache(String url)
+  private byte[] getBytesFromDiskCache(String url)
   {
-    // First try the hard reference cache
-    synchronized (m_sHardBitmapCache)
+    try
     {
-      final Bitmap bitmap = m_sHardBitmapCache.get(url);
-      if (bitmap != null)
+      // Opened under the lock of the cache, an eviction cannot delete it before it is read
+      InputStream in = m_sDiskCache.getStream(url);
+      if (in != null)
       {
-        // Bitmap found in hard cache
-        // Move element to first position, so that it is removed last
-        m_sHardBitmapCache.remove(url);
-        m_sHardBitmapCache.put(url, bitmap);
-        return bitmap;
+        return readFully(in);
       }
-//      // Use of Android local cache for later
-//      else
-//      {
-//        String filename = url.replaceAll("http:", "").replace(":", "").replace("/", "");
-//        File cached = new File(m_context.getCacheDir(), filename);
-//        if(cached.exists())
-//          return BitmapFactory.decodeFile(cached.getPath());
-//      }
     }
+    catch (IOException e)
+    {
+      Log.w(LOG_TAG, "Error while reading " + url + " from the disk cache", e);
+    }
+    return null;
+  }
 
-    // Then try the soft reference cache
-    SoftReference<Bitmap> bitmapReference = m_sSoftBitmapCache.get(url);
-    if (bitmapReference != null)
+  private void removeFromDiskCache(String url)
+  {
+    try
     {
-      final Bitmap bitmap = bitmapReference.get();
-      if (bitmap != null)
-      {
-        // Bitmap found in soft cache
-        return bitmap;
-      }
-      else
+      m_sDiskCache.remove(url);
+    }
+    catch (IOException e)
+    {
+      Log.w(LOG_TAG, "Error while removing " + url + " from the disk cache", e);
+    }
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException
+  {
+    try
+    {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1)
       {
-        // Soft reference has been Garbage Collected
-        m_sSoftBitmapCache.remove(url);
+        out.write(buffer, 0, read);
       }
+      return out.toByteArray();
     }
+    finally
+    {
+      in.close();
+    }
+  }
 
-    return null;
+  /**
+   * @param key
+   *          The URL and size of the image that will be retrieved from the
+   *          cache.
+   * @return The cached bitmap or null if it was not found.
+   */
+  private Bitmap getBitmapFromCache(BitmapKey key)
+  {
+    // Never blocks, the hit is recorded and makes the element the last one removed
+    return m_bitmapCache.get(key);
   }
 
   /**
    * Clears the image cache used internally to improve performance. Note that
    * for memory efficiency reasons, the cache will automatically be cleared
-   * after a certain inactivity delay.
+   * after a certain inactivity delay. The disk cache is kept.
    */
   public void clearCache()
   {
-    m_sHardBitmapCache.clear();
-    m_sSoftBitmapCache.clear();
+    m_bitmapCache.clear();
+    m_bitmapPool.clear();
   }
 
   /**
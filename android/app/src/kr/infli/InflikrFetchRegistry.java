@@ -0,0 +1,387 @@
+//
+//  InflikrFetchRegistry
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+
+package kr.infli;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Keeps at most one fetch in flight per key.
+ *
+ * <p>
+ * The first subscriber of a key schedules a fetch with its priority, later
+ * subscribers of the same key attach to the pending fetch and raise its
+ * priority if theirs is more urgent. The fetched value is
+ * delivered to every subscriber still attached, on the delivery executor (the
+ * UI thread for the downloader). A subscriber can cancel at any time, the fetch
+ * itself is only cancelled when its last subscriber is gone.
+ * </p>
+ *
+ * <p>
+ * A fetcher can also publish intermediate values while it runs, they are
+ * delivered the same way to the subscribers showing the progress.
+ * </p>
+ */
+public class InflikrFetchRegistry<K, V>
+{
+  /**
+   * Does the actual work, called on a thread of the scheduler.
+   */
+  public interface Fetcher<K, V>
+  {
+    /**
+     * @param fetch
+     *          The fetch being run, to check for cancellation or to register
+     *          an action aborting the work.
+     * @return The value or null if there is none.
+     */
+    V fetch(K key, InflikrFetchRegistry<K, V>.Fetch fetch) throws Exception;
+
+    /**
+     * Called on the delivery executor once the fetched value has been given to
+     * all the subscribers, or dropped because the fetch was cancelled.
+     */
+    void onDelivered(K key, V value);
+  }
+
+  /**
+   * Receives the fetched value, null if the fetch failed.
+   */
+  public interface Subscriber<V>
+  {
+    void onFetched(V value);
+  }
+
+  /**
+   * A subscriber which also receives the intermediate values of the fetch,
+   * before the fetched one.
+   */
+  public interface ProgressSubscriber<V> extends Subscriber<V>
+  {
+    /**
+     * @param fraction
+     *          The part of the value which is valid, from 0 to 1.
+     */
+    void onProgress(V partial, float fraction);
+  }
+
+  private final ConcurrentHashMap<K, Fetch> m_fetches = new ConcurrentHashMap<K, Fetch>();
+  private final Fetcher<K, V> m_fetcher;
+  private final InflikrScheduler m_scheduler;
+  private final Executor m_deliveryExecutor;
+
+  public InflikrFetchRegistry(Fetcher<K, V> fetcher, InflikrScheduler scheduler, Executor deliveryExecutor)
+  {
+    this.m_fetcher = fetcher;
+    this.m_scheduler = scheduler;
+    this.m_deliveryExecutor = deliveryExecutor;
+  }
+
+  /**
+   * Attaches the subscriber to the fetch of this key, scheduling it if there is
+   * none in flight.
+   *
+   * @return The subscription, to cancel it.
+   */
+  public Subscription subscribe(K key, Subscriber<V> subscriber, InflikrScheduler.Priority priority)
+  {
+    Subscription subscription = new Subscription(subscriber);
+    while (true)
+    {
+      Fetch fetch = m_fetches.get(key);
+      if (fetch == null)
+      {
+        fetch = new Fetch(key);
+        fetch.add(subscription, priority);
+        if (m_fetches.putIfAbsent(key, fetch) == null)
+        {
+          fetch.start(priority);
+          return subscription;
+        }
+      }
+      else if (fetch.add(subscription, priority))
+      {
+        return subscription;
+      }
+      else
+      {
+        // Completing or cancelled, a new fetch is needed
+        m_fetches.remove(key, fetch);
+      }
+    }
+  }
+
+  /**
+   * @return The number of fetches in flight.
+   */
+  public int size()
+  {
+    return m_fetches.size();
+  }
+
+  /**
+   * A fetch in flight and its subscribers.
+   */
+  public class Fetch implements Runnable, InflikrScheduler.Droppable
+  {
+    private final K m_key;
+    private final List<Subscription> m_subscriptions = new ArrayList<Subscription>(2);
+    // No more subscriber accepted, the fetch is completing or cancelled
+    private boolean m_closed;
+    private volatile boolean m_cancelled;
+    private InflikrScheduler.Task m_task;
+    private Runnable m_cancelAction;
+
+    Fetch(K key)
+    {
+      this.m_key = key;
+    }
+
+    public K getKey()
+    {
+      return m_key;
+    }
+
+    public boolean isCancelled()
+    {
+      return m_cancelled;
+    }
+
+    /**
+     * The action is run when the fetch is cancelled, or right away if it
+     * already is.
+     */
+    public void setCancelAction(Runnable cancelAction)
+    {
+      synchronized (this)
+      {
+        if (!m_cancelled)
+        {
+          m_cancelAction = cancelAction;
+          return;
+        }
+      }
+      cancelAction.run();
+    }
+
+    /**
+     * @return True if a subscriber still attached shows the progress, an
+     *         intermediate value is only worth computing in that case.
+     */
+    public synchronized boolean hasProgressSubscribers()
+    {
+      if (!m_cancelled)
+      {
+        for (Subscription subscription : m_subscriptions)
+        {
+          if (subscription.m_subscriber instanceof ProgressSubscriber)
+          {
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Delivers an intermediate value to the subscribers showing the progress,
+     * called by the fetcher while it runs. Always before the fetched value.
+     */
+    public void publish(final V partial, final float fraction)
+    {
+      final List<Subscription> subscriptions;
+      synchronized (this)
+      {
+        if (m_closed)
+        {
+          return;
+        }
+        subscriptions = new ArrayList<Subscription>(m_subscriptions);
+      }
+      m_deliveryExecutor.execute(new Runnable()
+      {
+        public void run()
+        {
+          for (Subscription subscription : subscriptions)
+          {
+            subscription.deliverProgress(partial, fraction);
+          }
+        }
+      });
+    }
+
+    void start(InflikrScheduler.Priority priority)
+    {
+      try
+      {
+        InflikrScheduler.Task task = m_scheduler.schedule(this, priority);
+        synchronized (this)
+        {
+          m_task = task;
+        }
+      }
+      catch (RuntimeException e)
+      {
+        m_fetches.remove(m_key, this);
+        throw e;
+      }
+    }
+
+    boolean add(Subscription subscription, InflikrScheduler.Priority priority)
+    {
+      InflikrScheduler.Task task;
+      synchronized (this)
+      {
+        if (m_closed)
+        {
+          return false;
+        }
+        m_subscriptions.add(subscription);
+        subscription.m_fetch = this;
+        task = m_task;
+      }
+      if (task != null)
+      {
+        task.promote(priority);
+      }
+      return true;
+    }
+
+    void remove(Subscription subscription)
+    {
+      InflikrScheduler.Task task;
+      Runnable cancelAction;
+      synchronized (this)
+      {
+        m_subscriptions.remove(subscription);
+        if (m_closed || !m_subscriptions.isEmpty())
+        {
+          return;
+        }
+        // That was the last one
+        m_closed = true;
+        m_cancelled = true;
+        task = m_task;
+        cancelAction = m_cancelAction;
+      }
+      m_fetches.remove(m_key, this);
+      if (task != null)
+      {
+        task.cancel(true);
+      }
+      if (cancelAction != null)
+      {
+        cancelAction.run();
+      }
+    }
+
+    public void run()
+    {
+      if (m_cancelled)
+      {
+        return;
+      }
+      V value = null;
+      try
+      {
+        value = m_fetcher.fetch(m_key, this);
+      }
+      catch (Exception e)
+      {
+        // The fetcher reports its errors, subscribers get a null value
+      }
+      complete(value);
+    }
+
+    /**
+     * Dropped by the scheduler before it ran, the subscribers get a null value
+     * and the next subscriber of the key starts a new fetch.
+     */
+    public void onDropped()
+    {
+      complete(null);
+    }
+
+    private void complete(V value)
+    {
+      final List<Subscription> subscriptions;
+      synchronized (this)
+      {
+        m_closed = true;
+        // Cancelled while fetching, nobody to deliver to
+        subscriptions = m_cancelled ? new ArrayList<Subscription>(0) : new ArrayList<Subscription>(m_subscriptions);
+      }
+      m_fetches.remove(m_key, this);
+
+      final V fetched = value;
+      m_deliveryExecutor.execute(new Runnable()
+      {
+        public void run()
+        {
+          for (Subscription subscription : subscriptions)
+          {
+            subscription.deliver(fetched);
+          }
+          m_fetcher.onDelivered(m_key, fetched);
+        }
+      });
+    }
+  }
+
+  /**
+   * The attachment of one subscriber to a fetch.
+   */
+  public class Subscription
+  {
+    private final Subscriber<V> m_subscriber;
+    private volatile boolean m_cancelled;
+    private volatile Fetch m_fetch;
+
+    Subscription(Subscriber<V> subscriber)
+    {
+      this.m_subscriber = subscriber;
+    }
+
+    /**
+     * The subscriber will not be called. The fetch is cancelled if it was the
+     * last subscriber.
+     */
+    public void cancel()
+    {
+      if (!m_cancelled)
+      {
+        m_cancelled = true;
+        m_fetch.remove(this);
+      }
+    }
+
+    public boolean isCancelled()
+    {
+      return m_cancelled;
+    }
+
+    void deliver(V value)
+    {
+      // Cancelled after the fetch completed
+      if (!m_cancelled)
+      {
+        m_subscriber.onFetched(value);
+      }
+    }
+
+    void deliverProgress(V partial, float fraction)
+    {
+      if (!m_cancelled && m_subscriber instanceof ProgressSubscriber)
+      {
+        ((ProgressSubscriber<V>) m_subscriber).onProgress(partial, fraction);
+      }
+    }
+  }
+}
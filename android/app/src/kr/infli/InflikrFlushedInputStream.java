@@ -0,0 +1,48 @@
+//
+//  InflikrFlushedInputStream
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+
+package kr.infli;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * An InputStream that skips the exact number of bytes provided, unless it
+ * reaches EOF.
+ */
+class InflikrFlushedInputStream extends FilterInputStream
+{
+  public InflikrFlushedInputStream(InputStream inputStream)
+  {
+    super(inputStream);
+  }
+
+  @Override
+  public long skip(long n) throws IOException
+  {
+    long totalBytesSkipped = 0L;
+    while (totalBytesSkipped < n)
+    {
+      long bytesSkipped = in.skip(n - totalBytesSkipped);
+      if (bytesSkipped == 0L)
+      {
+        int b = read();
+        if (b < 0)
+        {
+          break; // we reached EOF
+        }
+        else
+        {
+          bytesSkipped = 1; // we read one byte
+        }
+      }
+      totalBytesSkipped += bytesSkipped;
+    }
+    return totalBytesSkipped;
+  }
+}
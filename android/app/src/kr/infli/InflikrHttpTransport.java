@@ -0,0 +1,124 @@
+//
+//  InflikrHttpTransport
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+
+package kr.infli;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+/**
+ * The network transport: a thread safe HTTP client with a pool of keep-alive
+ * connections, limited per host.
+ */
+public class InflikrHttpTransport implements InflikrTransport
+{
+  private static final int MAX_CONNECTIONS = 24;
+  private static final int MAX_CONNECTIONS_PER_HOST = 6;
+  private static final int CONNECTION_TIMEOUT = 20 * 1000; // in milliseconds
+  private static final int SOCKET_TIMEOUT = 60 * 1000; // in milliseconds
+
+  // Shared by all the download threads, keeps the connections alive between images
+  private final DefaultHttpClient m_httpClient;
+
+  public InflikrHttpTransport()
+  {
+    HttpParams params = new BasicHttpParams();
+    HttpConnectionParams.setConnectionTimeout(params, CONNECTION_TIMEOUT);
+    HttpConnectionParams.setSoTimeout(params, SOCKET_TIMEOUT);
+    HttpConnectionParams.setSocketBufferSize(params, 8192);
+    HttpConnectionParams.setStaleCheckingEnabled(params, true);
+    HttpProtocolParams.setUserAgent(params, "Android");
+    ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+    ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS_PER_HOST));
+    // Waiting for a pooled connection is bounded as well
+    ConnManagerParams.setTimeout(params, CONNECTION_TIMEOUT);
+
+    SchemeRegistry schemeRegistry = new SchemeRegistry();
+    schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+    schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+    // Connections are kept alive as long as the server allows it
+    m_httpClient = new DefaultHttpClient(new ThreadSafeClientConnManager(params, schemeRegistry), params);
+  }
+
+  public Request newRequest(String url)
+  {
+    final HttpGet getRequest = new HttpGet(url);
+    return new Request()
+    {
+      public Response execute() throws IOException
+      {
+        final HttpResponse response = m_httpClient.execute(getRequest);
+        return new Response()
+        {
+          public int getStatusCode()
+          {
+            return response.getStatusLine().getStatusCode();
+          }
+
+          public long getContentLength()
+          {
+            HttpEntity entity = response.getEntity();
+            return entity == null ? -1 : entity.getContentLength();
+          }
+
+          public InputStream getContent() throws IOException
+          {
+            HttpEntity entity = response.getEntity();
+            if (entity == null)
+            {
+              throw new IOException("No content");
+            }
+            return entity.getContent();
+          }
+
+          public void close()
+          {
+            HttpEntity entity = response.getEntity();
+            if (entity != null)
+            {
+              try
+              {
+                // Gives the connection back to the pool
+                entity.consumeContent();
+              }
+              catch (IOException e)
+              {
+                getRequest.abort();
+              }
+            }
+          }
+        };
+      }
+
+      public void abort()
+      {
+        getRequest.abort();
+      }
+    };
+  }
+
+  public void shutdown()
+  {
+    m_httpClient.getConnectionManager().shutdown();
+  }
+}
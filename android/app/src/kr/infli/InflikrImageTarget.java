@@ -0,0 +1,43 @@
+//
+//  InflikrImageTarget
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+
+package kr.infli;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
+
+/**
+ * Where the downloader binds an image, a slot of a view. The methods are the
+ * ones of ImageView, plus the partial image of a hi-res upgrade, only called
+ * from the UI thread.
+ */
+public interface InflikrImageTarget
+{
+  void setImageBitmap(Bitmap bitmap);
+
+  void setImageDrawable(Drawable drawable);
+
+  Drawable getDrawable();
+
+  /**
+   * Shows a partially received image over the current one until the next
+   * image is set.
+   *
+   * @param partial
+   *          The image decoded from the bytes received so far, null to remove
+   *          it.
+   * @param fraction
+   *          The part of it which is valid, from the top.
+   */
+  void setPartialImage(Bitmap partial, float fraction);
+
+  /**
+   * @return The photo the target shows, compared with equals to know if a
+   *         hi-res upgrade is still wanted.
+   */
+  Object getTag();
+}
@@ -0,0 +1,122 @@
+//
+//  InflikrJpegHeader
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+
+package kr.infli;
+
+/**
+ * The markers of a JPEG image up to its first scan, read from the bytes
+ * received so far.
+ *
+ * <p>
+ * A progressive image refines the whole frame scan after scan, any prefix is
+ * worth showing. A baseline image is decoded from the top, the rows decoded
+ * from a prefix are roughly in proportion of the scan data received.
+ * </p>
+ */
+final class InflikrJpegHeader
+{
+  final boolean m_progressive;
+  final int m_width;
+  final int m_height;
+  // Offset of the first byte of entropy coded data
+  final int m_scanStart;
+
+  private InflikrJpegHeader(boolean progressive, int width, int height, int scanStart)
+  {
+    this.m_progressive = progressive;
+    this.m_width = width;
+    this.m_height = height;
+    this.m_scanStart = scanStart;
+  }
+
+  /**
+   * @return True if the data starts like a JPEG image, or is too short to
+   *         tell.
+   */
+  static boolean mayBeJpeg(byte[] data, int count)
+  {
+    return (count < 1 || (data[0] & 0xff) == 0xff) && (count < 2 || (data[1] & 0xff) == 0xd8);
+  }
+
+  /**
+   * @return The header or null if the first scan has not been received yet,
+   *         or if the data is not a JPEG image.
+   */
+  static InflikrJpegHeader parse(byte[] data, int count)
+  {
+    if (count < 4 || !mayBeJpeg(data, count))
+    {
+      return null;
+    }
+    boolean progressive = false;
+    int width = 0;
+    int height = 0;
+    int offset = 2;
+    while (offset + 4 <= count)
+    {
+      if ((data[offset] & 0xff) != 0xff)
+      {
+        // Not a marker, the stream is corrupted
+        return null;
+      }
+      int marker = data[offset + 1] & 0xff;
+      if (marker == 0xff)
+      {
+        // Fill byte
+        offset++;
+        continue;
+      }
+      if (marker == 0x01 || (marker >= 0xd0 && marker <= 0xd7))
+      {
+        // No length
+        offset += 2;
+        continue;
+      }
+      int length = ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+      if (length < 2 || offset + 2 + length > count)
+      {
+        return null;
+      }
+      if (isStartOfFrame(marker) && length >= 7)
+      {
+        progressive = marker == 0xc2 || marker == 0xc6 || marker == 0xca || marker == 0xce;
+        height = ((data[offset + 5] & 0xff) << 8) | (data[offset + 6] & 0xff);
+        width = ((data[offset + 7] & 0xff) << 8) | (data[offset + 8] & 0xff);
+      }
+      else if (marker == 0xda)
+      {
+        // Start of scan, the entropy coded data follows its header
+        return width > 0 && height > 0 ? new InflikrJpegHeader(progressive, width, height, offset + 2 + length) : null;
+      }
+      offset += 2 + length;
+    }
+    return null;
+  }
+
+  /**
+   * @return The fraction of the image, from the top, which can be decoded from
+   *         that many bytes out of the total, 1 for a progressive image.
+   */
+  float decodedFraction(int count, int total)
+  {
+    if (m_progressive)
+    {
+      return 1;
+    }
+    if (total <= m_scanStart || count <= m_scanStart)
+    {
+      return 0;
+    }
+    return Math.min(1, (float) (count - m_scanStart) / (total - m_scanStart));
+  }
+
+  private static boolean isStartOfFrame(int marker)
+  {
+    // SOF0 to SOF15, except DHT, JPG and DAC
+    return marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc;
+  }
+}
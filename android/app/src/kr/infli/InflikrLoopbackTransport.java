@@ -0,0 +1,53 @@
+//
+//  InflikrLoopbackTransport
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+
+package kr.infli;
+
+/**
+ * Sends the image downloads and the API calls to a local fixture server
+ * (InflikrFixtureServer) instead of Flickr, through another transport. A URL
+ * keeps its host as the first segment of the path, so the server can tell the
+ * sizes apart:
+ *
+ * <pre>
+ *   http://farm1.staticflickr.com/1000/42_s42_m.jpg
+ *   http://127.0.0.1:8080/farm1.staticflickr.com/1000/42_s42_m.jpg
+ * </pre>
+ */
+public class InflikrLoopbackTransport implements InflikrTransport
+{
+  private final InflikrTransport m_transport;
+  private final String m_host;
+  private final int m_port;
+
+  public InflikrLoopbackTransport(InflikrTransport transport, String host, int port)
+  {
+    this.m_transport = transport;
+    this.m_host = host;
+    this.m_port = port;
+  }
+
+  public Request newRequest(String url)
+  {
+    return m_transport.newRequest(rewrite(url));
+  }
+
+  public void shutdown()
+  {
+    m_transport.shutdown();
+  }
+
+  /**
+   * @return The URL on the fixture server.
+   */
+  String rewrite(String url)
+  {
+    int scheme = url.indexOf("://");
+    String path = scheme < 0 ? url : url.substring(scheme + 3);
+    return "http://" + m_host + ":" + m_port + "/" + path;
+  }
+}
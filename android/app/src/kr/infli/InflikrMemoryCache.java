@@ -0,0 +1,317 @@
+//
+//  InflikrMemoryCache
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+//  Inspired from
+//    https://code.google.com/p/concurrentlinkedhashmap/
+//
+
+package kr.infli;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A weight bounded LRU cache where hits never block.
+ *
+ * <p>
+ * Entries live in a ConcurrentHashMap, so a lookup is lock free. Instead of
+ * reordering the LRU list on every hit, the hit is recorded in a small lossy
+ * buffer (one per stripe of threads) and the buffers are drained into the LRU
+ * list by whoever gets the eviction lock next. A reader only tries the lock,
+ * it never waits for it. Writers take the lock to link the new entry and evict
+ * the least recently used ones.
+ * </p>
+ *
+ * <p>
+ * The LRU order is approximate: a hit recorded in a full buffer may be lost,
+ * which only makes an entry look a bit older than it is.
+ * </p>
+ */
+public class InflikrMemoryCache<K, V>
+{
+  /**
+   * Computes the weight of a value, for instance its size in bytes.
+   */
+  public interface Weigher<V>
+  {
+    int weightOf(V value);
+  }
+
+  /**
+   * Told about the entries leaving the cache, evicted, replaced or cleared.
+   * Called out of the cache lock, on the thread which removed them.
+   */
+  public interface RemovalListener<K, V>
+  {
+    void onRemoved(K key, V value);
+  }
+
+  // Must be powers of two
+  private static final int READ_BUFFER_STRIPES = 4;
+  private static final int READ_BUFFER_SIZE = 32;
+
+  // Drain the read buffers once that many hits have been recorded in a stripe
+  private static final int READ_BUFFER_DRAIN_THRESHOLD = READ_BUFFER_SIZE / 2;
+
+  private final ConcurrentHashMap<K, Node<K, V>> m_map = new ConcurrentHashMap<K, Node<K, V>>(64, 0.75f, READ_BUFFER_STRIPES);
+  private final Weigher<V> m_weigher;
+  private final RemovalListener<K, V> m_removalListener;
+  private final int m_maxWeight;
+
+  // Guards the LRU list and the weighted size
+  private final ReentrantLock m_evictionLock = new ReentrantLock();
+  // Sentinel of the LRU list, head.next is the eldest entry
+  private final Node<K, V> m_head = new Node<K, V>(null, null, 0);
+  private volatile int m_weightedSize;
+
+  private final AtomicReferenceArray<Node<K, V>> m_readBuffers = new AtomicReferenceArray<Node<K, V>>(READ_BUFFER_STRIPES * READ_BUFFER_SIZE);
+  private final AtomicInteger[] m_readCounts = new AtomicInteger[READ_BUFFER_STRIPES];
+
+  public InflikrMemoryCache(int maxWeight, Weigher<V> weigher)
+  {
+    this(maxWeight, weigher, null);
+  }
+
+  public InflikrMemoryCache(int maxWeight, Weigher<V> weigher, RemovalListener<K, V> removalListener)
+  {
+    this.m_maxWeight = maxWeight;
+    this.m_weigher = weigher;
+    this.m_removalListener = removalListener;
+    m_head.m_prev = m_head;
+    m_head.m_next = m_head;
+    for (int i = 0; i < READ_BUFFER_STRIPES; i++)
+    {
+      m_readCounts[i] = new AtomicInteger();
+    }
+  }
+
+  /**
+   * Never blocks.
+   *
+   * @return The cached value or null if it was not found.
+   */
+  public V get(K key)
+  {
+    Node<K, V> node = m_map.get(key);
+    if (node == null)
+    {
+      return null;
+    }
+    recordRead(node);
+    return node.m_value;
+  }
+
+  /**
+   * Adds this value, evicting the least recently used ones if the cache goes
+   * over its maximum weight.
+   */
+  public void put(K key, V value)
+  {
+    Node<K, V> node = new Node<K, V>(key, value, m_weigher.weightOf(value));
+    Node<K, V> previous = m_map.put(key, node);
+    List<Node<K, V>> removed;
+    m_evictionLock.lock();
+    try
+    {
+      drainReadBuffers();
+      if (previous != null && !previous.m_removed)
+      {
+        unlink(previous);
+        previous.m_removed = true;
+      }
+      else
+      {
+        // Already removed and notified by a concurrent clear
+        previous = null;
+      }
+      // A concurrent clear or put may already have replaced it
+      if (m_map.get(key) == node)
+      {
+        link(node);
+      }
+      removed = evict();
+    }
+    finally
+    {
+      m_evictionLock.unlock();
+    }
+    if (previous != null)
+    {
+      notifyRemoved(previous);
+    }
+    notifyRemoved(removed);
+  }
+
+  /**
+   * Removes all the entries.
+   */
+  public void clear()
+  {
+    List<Node<K, V>> removed = new ArrayList<Node<K, V>>();
+    m_evictionLock.lock();
+    try
+    {
+      drainReadBuffers();
+      while (m_head.m_next != m_head)
+      {
+        Node<K, V> eldest = m_head.m_next;
+        m_map.remove(eldest.m_key, eldest);
+        unlink(eldest);
+        eldest.m_removed = true;
+        removed.add(eldest);
+      }
+    }
+    finally
+    {
+      m_evictionLock.unlock();
+    }
+    notifyRemoved(removed);
+  }
+
+  /**
+   * @return The sum of the weights of the entries.
+   */
+  public int weightedSize()
+  {
+    return m_weightedSize;
+  }
+
+  public int maxWeight()
+  {
+    return m_maxWeight;
+  }
+
+  private void recordRead(Node<K, V> node)
+  {
+    // Threads are spread over the stripes so they rarely write the same slots
+    int stripe = (int) Thread.currentThread().getId() & (READ_BUFFER_STRIPES - 1);
+    int count = m_readCounts[stripe].incrementAndGet();
+    // Lossy, an older record still in the slot is simply overwritten
+    m_readBuffers.lazySet(stripe * READ_BUFFER_SIZE + (count & (READ_BUFFER_SIZE - 1)), node);
+    if ((count & (READ_BUFFER_DRAIN_THRESHOLD - 1)) == 0 && m_evictionLock.tryLock())
+    {
+      try
+      {
+        drainReadBuffers();
+      }
+      finally
+      {
+        m_evictionLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Replays the recorded hits on the LRU list. Must hold the eviction lock.
+   */
+  private void drainReadBuffers()
+  {
+    for (int i = 0; i < m_readBuffers.length(); i++)
+    {
+      Node<K, V> node = m_readBuffers.getAndSet(i, null);
+      // Ignore nodes evicted or replaced since they were read
+      if (node != null && node.m_next != null)
+      {
+        unlink(node);
+        link(node);
+      }
+    }
+  }
+
+  /**
+   * @return The evicted nodes, null if there is none.
+   */
+  private List<Node<K, V>> evict()
+  {
+    List<Node<K, V>> evicted = null;
+    while (m_weightedSize > m_maxWeight && m_head.m_next != m_head)
+    {
+      Node<K, V> eldest = m_head.m_next;
+      m_map.remove(eldest.m_key, eldest);
+      unlink(eldest);
+      eldest.m_removed = true;
+      if (evicted == null)
+      {
+        evicted = new ArrayList<Node<K, V>>(2);
+      }
+      evicted.add(eldest);
+    }
+    return evicted;
+  }
+
+  private void notifyRemoved(List<Node<K, V>> nodes)
+  {
+    if (nodes != null)
+    {
+      for (Node<K, V> node : nodes)
+      {
+        notifyRemoved(node);
+      }
+    }
+  }
+
+  private void notifyRemoved(Node<K, V> node)
+  {
+    if (m_removalListener != null)
+    {
+      m_removalListener.onRemoved(node.m_key, node.m_value);
+    }
+  }
+
+  /**
+   * Appends the node as the most recently used one. Must hold the eviction
+   * lock.
+   */
+  private void link(Node<K, V> node)
+  {
+    node.m_prev = m_head.m_prev;
+    node.m_next = m_head;
+    m_head.m_prev.m_next = node;
+    m_head.m_prev = node;
+    m_weightedSize += node.m_weight;
+  }
+
+  /**
+   * Must hold the eviction lock, does nothing if the node is not linked.
+   */
+  private void unlink(Node<K, V> node)
+  {
+    if (node.m_next == null)
+    {
+      return;
+    }
+    node.m_prev.m_next = node.m_next;
+    node.m_next.m_prev = node.m_prev;
+    node.m_prev = null;
+    node.m_next = null;
+    m_weightedSize -= node.m_weight;
+  }
+
+  /**
+   * An entry, also an element of the LRU list when its links are not null.
+   */
+  static final class Node<K, V>
+  {
+    final K m_key;
+    final V m_value;
+    final int m_weight;
+    Node<K, V> m_prev;
+    Node<K, V> m_next;
+    // Left the cache and the removal listener was told, guarded by the eviction lock
+    boolean m_removed;
+
+    Node(K key, V value, int weight)
+    {
+      this.m_key = key;
+      this.m_value = value;
+      this.m_weight = weight;
+    }
+  }
+}
@@ -0,0 +1,257 @@
+//
+//  InflikrMetrics
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+
+package kr.infli;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts what the downloader does, from any thread and without locking, so the
+ * scroll jank can be put down to the caches, the network, the decoder or the
+ * queue. Read through a snapshot, which is consistent per value only.
+ */
+public class InflikrMetrics
+{
+  /**
+   * The distribution of a duration, in milliseconds, or of a count. Bucket 0
+   * holds 0, bucket i the values from 2^(i-1) to 2^i - 1, the last one
+   * everything above.
+   */
+  public static class Histogram
+  {
+    static final int BUCKETS = 17;
+
+    private final AtomicLongArray m_counts = new AtomicLongArray(BUCKETS);
+
+    public void record(long value)
+    {
+      m_counts.incrementAndGet(bucketOf(value));
+    }
+
+    static int bucketOf(long value)
+    {
+      if (value <= 0)
+      {
+        return 0;
+      }
+      return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    long[] counts()
+    {
+      long[] counts = new long[BUCKETS];
+      for (int i = 0; i < BUCKETS; i++)
+      {
+        counts[i] = m_counts.get(i);
+      }
+      return counts;
+    }
+
+    void clear()
+    {
+      for (int i = 0; i < BUCKETS; i++)
+      {
+        m_counts.set(i, 0);
+      }
+    }
+  }
+
+  // Bitmaps asked for a row, found decoded or not
+  final AtomicLong m_memoryHits = new AtomicLong();
+  final AtomicLong m_memoryMisses = new AtomicLong();
+
+  // Free bitmaps of the pool decoded into, or not, when the size allows it
+  final AtomicLong m_poolHits = new AtomicLong();
+  final AtomicLong m_poolMisses = new AtomicLong();
+
+  // Images loaded from the disk cache, or from the network
+  final AtomicLong m_diskHits = new AtomicLong();
+  final AtomicLong m_diskMisses = new AtomicLong();
+
+  final AtomicLong m_bytesFetched = new AtomicLong();
+  final AtomicLong m_downloadErrors = new AtomicLong();
+
+  // Downloads aborted once cancelled, or delivered to a row showing another photo
+  final AtomicLong m_wastedDownloads = new AtomicLong();
+
+  // Downloads which could not be scheduled at all
+  final AtomicLong m_rejectedDownloads = new AtomicLong();
+
+  // From the request to the headers, and to the last byte
+  final Histogram m_timeToFirstByte = new Histogram();
+  final Histogram m_downloadTime = new Histogram();
+
+  final Histogram m_decodeTime = new Histogram();
+
+  // From the row asking for its image to the image shown, 0 for a memory hit
+  final Histogram m_bindLatency = new Histogram();
+
+  // Tasks waiting when a download starts
+  final Histogram m_queueDepth = new Histogram();
+
+  /**
+   * @param queued
+   *          The number of tasks waiting for a thread now.
+   * @param dropped
+   *          The number of tasks dropped from the full queue so far.
+   */
+  public Snapshot snapshot(int queued, long dropped)
+  {
+    return new Snapshot(this, queued, dropped);
+  }
+
+  /**
+   * Starts counting again, for instance before a scripted fling.
+   */
+  public void reset()
+  {
+    AtomicLong[] counters = { m_memoryHits, m_memoryMisses, m_poolHits, m_poolMisses, m_diskHits, m_diskMisses, m_bytesFetched, m_downloadErrors, m_wastedDownloads, m_rejectedDownloads };
+    for (AtomicLong counter : counters)
+    {
+      counter.set(0);
+    }
+    Histogram[] histograms = { m_timeToFirstByte, m_downloadTime, m_decodeTime, m_bindLatency, m_queueDepth };
+    for (Histogram histogram : histograms)
+    {
+      histogram.clear();
+    }
+  }
+
+  /**
+   * The values of the metrics at one time.
+   */
+  public static final class Snapshot
+  {
+    public final long m_memoryHits;
+    public final long m_memoryMisses;
+    public final long m_poolHits;
+    public final long m_poolMisses;
+    public final long m_diskHits;
+    public final long m_diskMisses;
+    public final long m_bytesFetched;
+    public final long m_downloadErrors;
+    public final long m_wastedDownloads;
+    public final long m_rejectedDownloads;
+    public final long m_droppedDownloads;
+    public final int m_queued;
+    final long[] m_timeToFirstByte;
+    final long[] m_downloadTime;
+    final long[] m_decodeTime;
+    final long[] m_bindLatency;
+    final long[] m_queueDepth;
+
+    Snapshot(InflikrMetrics metrics, int queued, long dropped)
+    {
+      this.m_memoryHits = metrics.m_memoryHits.get();
+      this.m_memoryMisses = metrics.m_memoryMisses.get();
+      this.m_poolHits = metrics.m_poolHits.get();
+      this.m_poolMisses = metrics.m_poolMisses.get();
+      this.m_diskHits = metrics.m_diskHits.get();
+      this.m_diskMisses = metrics.m_diskMisses.get();
+      this.m_bytesFetched = metrics.m_bytesFetched.get();
+      this.m_downloadErrors = metrics.m_downloadErrors.get();
+      this.m_wastedDownloads = metrics.m_wastedDownloads.get();
+      this.m_rejectedDownloads = metrics.m_rejectedDownloads.get();
+      this.m_droppedDownloads = dropped;
+      this.m_queued = queued;
+      this.m_timeToFirstByte = metrics.m_timeToFirstByte.counts();
+      this.m_downloadTime = metrics.m_downloadTime.counts();
+      this.m_decodeTime = metrics.m_decodeTime.counts();
+      this.m_bindLatency = metrics.m_bindLatency.counts();
+      this.m_queueDepth = metrics.m_queueDepth.counts();
+    }
+
+    /**
+     * @return The upper bound of the bucket holding this percentile of the
+     *         time to first byte, in milliseconds. Same for the others.
+     */
+    public long timeToFirstBytePercentile(float percentile)
+    {
+      return percentile(m_timeToFirstByte, percentile);
+    }
+
+    public long downloadTimePercentile(float percentile)
+    {
+      return percentile(m_downloadTime, percentile);
+    }
+
+    public long decodeTimePercentile(float percentile)
+    {
+      return percentile(m_decodeTime, percentile);
+    }
+
+    public long bindLatencyPercentile(float percentile)
+    {
+      return percentile(m_bindLatency, percentile);
+    }
+
+    public long queueDepthPercentile(float percentile)
+    {
+      return percentile(m_queueDepth, percentile);
+    }
+
+    /**
+     * @return The upper bound of the bucket, -1 if nothing was recorded. The
+     *         last bucket has no bound, its lower one is returned.
+     */
+    static long percentile(long[] counts, float percentile)
+    {
+      long total = 0;
+      for (long count : counts)
+      {
+        total += count;
+      }
+      if (total == 0)
+      {
+        return -1;
+      }
+      long rank = (long) Math.ceil(total * percentile / 100f);
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++)
+      {
+        seen += counts[i];
+        if (seen >= Math.max(1, rank))
+        {
+          return i == counts.length - 1 ? 1L << (i - 1) : (1L << i) - 1;
+        }
+      }
+      return 1L << (counts.length - 2);
+    }
+
+    private static String ratio(long hits, long misses)
+    {
+      long total = hits + misses;
+      return hits + "/" + total + (total == 0 ? "" : " (" + (100 * hits / total) + "%)");
+    }
+
+    private static String percentiles(long[] counts)
+    {
+      return "p50 " + percentile(counts, 50) + " p90 " + percentile(counts, 90) + " p99 " + percentile(counts, 99);
+    }
+
+    /**
+     * One metric per line, for a dump or the log.
+     */
+    @Override
+    public String toString()
+    {
+      StringBuilder builder = new StringBuilder();
+      builder.append("memory hits ").append(ratio(m_memoryHits, m_memoryMisses)).append('\n');
+      builder.append("pool hits ").append(ratio(m_poolHits, m_poolMisses)).append('\n');
+      builder.append("disk hits ").append(ratio(m_diskHits, m_diskMisses)).append('\n');
+      builder.append("bytes fetched ").append(m_bytesFetched).append(", errors ").append(m_downloadErrors).append('\n');
+      builder.append("wasted ").append(m_wastedDownloads).append(", dropped ").append(m_droppedDownloads).append(", rejected ").append(m_rejectedDownloads).append('\n');
+      builder.append("queued ").append(m_queued).append(", at start ").append(percentiles(m_queueDepth)).append('\n');
+      builder.append("time to first byte ms ").append(percentiles(m_timeToFirstByte)).append('\n');
+      builder.append("download ms ").append(percentiles(m_downloadTime)).append('\n');
+      builder.append("decode ms ").append(percentiles(m_decodeTime)).append('\n');
+      builder.append("bind ms ").append(percentiles(m_bindLatency)).append('\n');
+      return builder.toString();
+    }
+  }
+}
@@ -0,0 +1,587 @@
+//
+//  InflikrPhotoSource
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+
+package kr.infli;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.googlecode.flickrjandroid.photos.SearchParameters;
+
+/**
+ * The photos of a search, loaded one page at a time.
+ *
+ * <p>
+ * The first page is small so the list shows up quickly, the next ones are
+ * loaded in the background when asked, typically when the list is scrolled
+ * near its end. A page is parsed while it is received and its photos are
+ * appended by batches, the first rows do not wait for the last bytes. The
+ * photos are appended to a table owned by the source, only read and written
+ * from the UI thread.
+ * </p>
+ *
+ * <p>
+ * The search may be split in several streams, for instance one per tag instead
+ * of all the tags in one query. The streams are queried in parallel and merged
+ * rank by rank, round robin, so the list stays ordered like each stream is.
+ * Photos found by several streams are only kept once. The first rows are shown
+ * as soon as the first stream answers, the next ones as soon as every stream
+ * still loading has its next photo in the merge order.
+ * </p>
+ *
+ * <p>
+ * The source may be seeded with the photos saved by the last launch, shown
+ * while the first page is loaded. Once loaded, the first page replaces them:
+ * the saved photos it does not have left the search or moved to the next
+ * pages, which are loaded as usual. Every complete page saves the list for the
+ * next launch.
+ * </p>
+ */
+public class InflikrPhotoSource
+{
+  static final String LOG_TAG = "InflikrPhotoSource";
+
+  /**
+   * Called on the UI thread.
+   */
+  public interface Listener
+  {
+    /**
+     * @param count
+     *          The number of photos appended to the list, may be 0 if the page
+     *          only had photos already in it.
+     */
+    void onPhotosAdded(int count);
+
+    /**
+     * Nothing was saved, nothing to show until the first page is loaded.
+     */
+    void onWaitingForPhotos();
+
+    /**
+     * The saved photos have been updated with the first page, the list
+     * changed in place.
+     */
+    void onPhotosReplaced();
+
+    /**
+     * No stream answered the page, it is loaded again after a delay.
+     */
+    void onLoadFailed();
+  }
+
+  // Photos per page, shared by the streams
+  public static final int PAGE_SIZE = 30;
+
+  // Flickr does not return more results for a search
+  public static final int MAX_PHOTOS = 4000;
+
+  // Shown from the first stream to answer, without waiting for the others
+  private static final int FIRST_ROWS = 5;
+
+  // Photos parsed before they are handed over to the UI thread, after the first rows
+  private static final int BATCH_SIZE = 10;
+
+  // After an error, wait before loading again
+  private static final int RETRY_DELAY = 5 * 1000; // in milliseconds
+
+  private final InflikrSearchClient m_client;
+  private final SearchParameters[] m_streams;
+  private final int m_streamPageSize;
+  private Listener m_listener;
+  private final Handler m_uiHandler = new Handler();
+  private final ExecutorService m_executor;
+  private final InflikrPhotoStore m_store;
+
+  // The pages move while we load them and the streams overlap, a photo may come twice
+  private final InflikrPhotoTable m_photos = new InflikrPhotoTable();
+
+  // Photos loaded and not merged yet, by stream, from the next one to merge
+  private final InflikrPhotoTable[] m_pending;
+  private final int[] m_pendingNext;
+  // Pages of each stream, unknown until its first page is loaded
+  private final int[] m_streamPages;
+  // Streams whose page is still being received, the merge waits for them
+  private final boolean[] m_streamLoading;
+  // The stream the merge takes the next photo from
+  private int m_nextStream;
+
+  private int m_nextPage = 1;
+  private PageLoad m_pageLoad;
+  private long m_retryTime;
+
+  // Retries a failed page, even with no scroll to ask for it
+  private final Runnable m_retry = new Runnable()
+  {
+    public void run()
+    {
+      loadMore();
+    }
+  };
+
+  // Showing the saved photos, until the first page is loaded
+  private boolean m_stale;
+
+  // For the time to first row
+  private long m_startTime = -1;
+  private boolean m_firstRowShown;
+
+  /**
+   * A source made of a single search.
+   */
+  public InflikrPhotoSource(InflikrSearchClient client, SearchParameters searchParameters, InflikrPhotoStore store, Listener listener)
+  {
+    this(client, new SearchParameters[] { searchParameters }, store, listener);
+  }
+
+  /**
+   * A source merging several searches, queried in parallel.
+   */
+  public InflikrPhotoSource(InflikrSearchClient client, SearchParameters[] streams, InflikrPhotoStore store, Listener listener)
+  {
+    this.m_client = client;
+    this.m_store = store;
+    this.m_streams = streams;
+    this.m_streamPageSize = Math.max(1, PAGE_SIZE / streams.length);
+    this.m_listener = listener;
+    this.m_executor = Executors.newFixedThreadPool(streams.length);
+    this.m_streamPages = new int[streams.length];
+    this.m_streamLoading = new boolean[streams.length];
+    this.m_pending = new InflikrPhotoTable[streams.length];
+    this.m_pendingNext = new int[streams.length];
+    for (int i = 0; i < streams.length; i++)
+    {
+      m_pending[i] = new InflikrPhotoTable();
+      m_streamPages[i] = -1;
+    }
+  }
+
+  /**
+   * @return The photos loaded so far, the table grows as pages are loaded.
+   */
+  public InflikrPhotoTable getPhotos()
+  {
+    return m_photos;
+  }
+
+  /**
+   * The source outlives the activities, each new one listens in turn.
+   */
+  public void setListener(Listener listener)
+  {
+    this.m_listener = listener;
+  }
+
+  /**
+   * Shows the saved photos, if any, then loads the first page.
+   */
+  public void start()
+  {
+    new StoreLoadTask().execute();
+  }
+
+  /**
+   * @return true if there is nothing to show yet but the first page is on its
+   *         way.
+   */
+  public boolean isWaitingForPhotos()
+  {
+    return m_photos.isEmpty() && m_pageLoad != null;
+  }
+
+  /**
+   * Shows the saved photos until the first page is loaded.
+   */
+  private void seed(InflikrPhotoTable photos)
+  {
+    if (m_pageLoad != null || m_nextPage > 1 || photos.isEmpty())
+    {
+      return;
+    }
+    for (int i = 0; i < photos.size() && m_photos.size() < MAX_PHOTOS; i++)
+    {
+      if (!m_photos.contains(photos.getId(i)))
+      {
+        m_photos.append(photos, i);
+      }
+    }
+    m_stale = true;
+  }
+
+  public boolean hasMore()
+  {
+    if (m_photos.size() >= MAX_PHOTOS && !m_stale)
+    {
+      return false;
+    }
+    for (int i = 0; i < m_streams.length; i++)
+    {
+      if (hasMore(i))
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public boolean isLoading()
+  {
+    return m_pageLoad != null;
+  }
+
+  /**
+   * Loads the next page in the background, unless one is already loading or
+   * there is no more.
+   */
+  public void loadMore()
+  {
+    if (m_pageLoad != null || !hasMore() || SystemClock.uptimeMillis() < m_retryTime)
+    {
+      return;
+    }
+    if (m_startTime < 0)
+    {
+      m_startTime = SystemClock.uptimeMillis();
+    }
+    m_pageLoad = new PageLoad(m_nextPage);
+    m_pageLoad.start();
+  }
+
+  /**
+   * Stops loading, the listener will not be called anymore.
+   */
+  public void close()
+  {
+    m_uiHandler.removeCallbacks(m_retry);
+    if (m_pageLoad != null)
+    {
+      m_pageLoad.cancel();
+      m_pageLoad = null;
+    }
+    m_executor.shutdownNow();
+    m_store.close();
+  }
+
+  private boolean hasMore(int stream)
+  {
+    return m_streamPages[stream] < 0 || m_nextPage <= m_streamPages[stream];
+  }
+
+  /**
+   * Appends the pending photos, round robin over the streams. Until the page
+   * is complete, the merge stops at a stream still loading which has no photo
+   * pending, except for the first rows.
+   *
+   * @return The number of photos appended.
+   */
+  private int merge(boolean complete)
+  {
+    int count = 0;
+    while (m_photos.size() < MAX_PHOTOS)
+    {
+      int stream = nextPending(complete || m_photos.size() < FIRST_ROWS);
+      if (stream < 0)
+      {
+        break;
+      }
+      InflikrPhotoTable pending = m_pending[stream];
+      int index = m_pendingNext[stream]++;
+      if (!m_photos.contains(pending.getId(index)))
+      {
+        m_photos.append(pending, index);
+        count++;
+      }
+      if (m_pendingNext[stream] == pending.size())
+      {
+        pending.clear();
+        m_pendingNext[stream] = 0;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Replaces the saved photos with the first page, the ones it does not
+   * confirm are dropped.
+   *
+   * @return true if the photos or their order changed.
+   */
+  private boolean replaceStalePhotos()
+  {
+    InflikrPhotoTable stale = m_photos.copy();
+    m_photos.clear();
+    merge(true);
+    if (stale.size() != m_photos.size())
+    {
+      return true;
+    }
+    for (int i = 0; i < stale.size(); i++)
+    {
+      if (stale.getId(i) != m_photos.getId(i))
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param skipLoading
+   *          True to take the next photo of any stream, false to wait for a
+   *          stream still loading when its turn comes.
+   * @return The stream to take the next photo from, -1 for none.
+   */
+  private int nextPending(boolean skipLoading)
+  {
+    for (int i = 0; i < m_streams.length; i++)
+    {
+      int stream = (m_nextStream + i) % m_streams.length;
+      if (m_pendingNext[stream] < m_pending[stream].size())
+      {
+        m_nextStream = (stream + 1) % m_streams.length;
+        return stream;
+      }
+      if (!skipLoading && m_streamLoading[stream])
+      {
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * A batch of photos parsed from the page of a stream, before the page ends.
+   */
+  private void onStreamPhotos(PageLoad pageLoad, int stream, InflikrPhotoTable photos)
+  {
+    if (m_pageLoad != pageLoad)
+    {
+      // Closed meanwhile
+      return;
+    }
+    pageLoad.m_counts[stream] += photos.size();
+    InflikrPhotoTable pending = m_pending[stream];
+    for (int i = 0; i < photos.size(); i++)
+    {
+      pending.append(photos, i);
+    }
+    if (m_stale)
+    {
+      // Keep showing the saved photos until the page is complete
+      return;
+    }
+    int count = merge(false);
+    if (count > 0)
+    {
+      onRowsMerged(count);
+    }
+  }
+
+  private void onRowsMerged(int count)
+  {
+    if (!m_firstRowShown)
+    {
+      m_firstRowShown = true;
+      Log.i(LOG_TAG, "First row after " + (SystemClock.uptimeMillis() - m_startTime) + " ms, " + m_streams.length + " stream(s)");
+    }
+    m_listener.onPhotosAdded(count);
+  }
+
+  /**
+   * The page of a stream ended, all its batches were delivered before.
+   *
+   * @param pages
+   *          The number of pages of the stream, -1 if the page failed.
+   */
+  private void onStreamLoaded(PageLoad pageLoad, int stream, int pages)
+  {
+    if (m_pageLoad != pageLoad)
+    {
+      // Closed meanwhile
+      return;
+    }
+    long elapsed = SystemClock.uptimeMillis() - pageLoad.m_startTime;
+    m_streamLoading[stream] = false;
+    if (pages >= 0)
+    {
+      pageLoad.m_loaded++;
+      m_streamPages[stream] = pages;
+      Log.i(LOG_TAG, "Stream " + stream + " page " + pageLoad.m_page + ": " + pageLoad.m_counts[stream] + " photos in " + elapsed + " ms");
+    }
+    boolean complete = --pageLoad.m_remaining == 0;
+    if (complete)
+    {
+      m_pageLoad = null;
+      if (pageLoad.m_loaded == 0)
+      {
+        m_retryTime = SystemClock.uptimeMillis() + RETRY_DELAY;
+        m_uiHandler.removeCallbacks(m_retry);
+        m_uiHandler.postDelayed(m_retry, RETRY_DELAY);
+        m_listener.onLoadFailed();
+        return;
+      }
+      m_nextPage = pageLoad.m_page + 1;
+    }
+    if (m_stale)
+    {
+      if (complete)
+      {
+        // Revalidated, the saved photos make way for the first page
+        m_stale = false;
+        boolean changed = replaceStalePhotos();
+        Log.i(LOG_TAG, "First page after " + (SystemClock.uptimeMillis() - m_startTime) + " ms, " + (changed ? "updated" : "unchanged"));
+        m_store.saveAsync(m_photos);
+        if (changed)
+        {
+          m_listener.onPhotosReplaced();
+        }
+      }
+      // Keep showing the saved photos meanwhile
+      return;
+    }
+    int count = merge(complete);
+    if (complete)
+    {
+      Log.i(LOG_TAG, "Page " + pageLoad.m_page + " merged in " + elapsed + " ms, " + m_photos.size() + " photos");
+      m_store.saveAsync(m_photos);
+    }
+    if (count > 0 || complete)
+    {
+      onRowsMerged(count);
+    }
+  }
+
+  private class StoreLoadTask extends AsyncTask<Void, Void, InflikrPhotoTable>
+  {
+    @Override
+    protected InflikrPhotoTable doInBackground(Void... params)
+    {
+      return m_store.load();
+    }
+
+    @Override
+    protected void onPostExecute(InflikrPhotoTable photos)
+    {
+      if (m_executor.isShutdown())
+      {
+        // Closed meanwhile
+        return;
+      }
+      seed(photos);
+      loadMore();
+      if (m_photos.isEmpty())
+      {
+        // First launch
+        m_listener.onWaitingForPhotos();
+      }
+      else
+      {
+        m_listener.onPhotosAdded(m_photos.size());
+      }
+    }
+  }
+
+  /**
+   * The load of the same page of every stream which has one.
+   */
+  private class PageLoad
+  {
+    final int m_page;
+    final long m_startTime = SystemClock.uptimeMillis();
+    final List<Future<?>> m_futures = new ArrayList<Future<?>>();
+    // Only used from the UI thread
+    int m_remaining;
+    int m_loaded;
+    // Photos received, by stream
+    final int[] m_counts = new int[m_streams.length];
+
+    PageLoad(int page)
+    {
+      this.m_page = page;
+    }
+
+    void start()
+    {
+      for (int i = 0; i < m_streams.length; i++)
+      {
+        if (hasMore(i))
+        {
+          m_remaining++;
+        }
+      }
+      for (int i = 0; i < m_streams.length; i++)
+      {
+        if (hasMore(i))
+        {
+          final int stream = i;
+          m_streamLoading[stream] = true;
+          m_futures.add(m_executor.submit(new Runnable()
+          {
+            public void run()
+            {
+              final int pages = search(stream);
+              m_uiHandler.post(new Runnable()
+              {
+                public void run()
+                {
+                  onStreamLoaded(PageLoad.this, stream, pages);
+                }
+              });
+            }
+          }));
+        }
+      }
+    }
+
+    void cancel()
+    {
+      for (Future<?> future : m_futures)
+      {
+        future.cancel(true);
+      }
+    }
+
+    /**
+     * Posts the photos of the page to the UI thread by batches, as they are
+     * parsed.
+     *
+     * @return The number of pages of the stream, -1 if an error occurs.
+     */
+    private int search(final int stream)
+    {
+      try
+      {
+        return m_client.search(m_streams[stream], m_streamPageSize, m_page, FIRST_ROWS, BATCH_SIZE, new InflikrSearchClient.Receiver()
+        {
+          public void onPhotos(final InflikrPhotoTable photos)
+          {
+            m_uiHandler.post(new Runnable()
+            {
+              public void run()
+              {
+                onStreamPhotos(PageLoad.this, stream, photos);
+              }
+            });
+          }
+        });
+      }
+      catch (Exception e)
+      {
+        Log.w(LOG_TAG, "Error while loading page " + m_page + " of stream " + stream, e);
+        return -1;
+      }
+    }
+  }
+}
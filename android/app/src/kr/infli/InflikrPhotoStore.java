@@ -0,0 +1,218 @@
+//
+//  InflikrPhotoStore
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+
+package kr.infli;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The last photo list, saved in a small binary file so the next launch shows
+ * it without waiting for the network.
+ *
+ * <p>
+ * The columns of the photo table are written as they are: the owners once,
+ * then the ids, farm, server, secrets, title, owner and packed date of each
+ * photo. The file is written to a temporary file and renamed, a crash keeps
+ * the previous list.
+ * </p>
+ */
+public class InflikrPhotoStore
+{
+  private static final int MAGIC = 0x696e666c; // "infl"
+  private static final int VERSION = 2;
+  private static final String TMP_SUFFIX = ".tmp";
+
+  private final File m_file;
+
+  // Saves one after the other, off the UI thread
+  private final ExecutorService m_executor = Executors.newSingleThreadExecutor();
+
+  public InflikrPhotoStore(File file)
+  {
+    this.m_file = file;
+  }
+
+  /**
+   * Reads the saved list, does file I/O.
+   *
+   * @return The photos, empty if none were saved or the file is corrupted.
+   */
+  public InflikrPhotoTable load()
+  {
+    DataInputStream in;
+    try
+    {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(m_file)));
+    }
+    catch (FileNotFoundException e)
+    {
+      return new InflikrPhotoTable(0);
+    }
+    try
+    {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION)
+      {
+        return new InflikrPhotoTable(0);
+      }
+      int ownerCount = readCount(in);
+      int[] owners = new int[ownerCount];
+      InflikrPhotoTable photos = new InflikrPhotoTable();
+      for (int i = 0; i < ownerCount; i++)
+      {
+        owners[i] = photos.addOwner(readString(in), readString(in), in.readInt(), in.readInt());
+      }
+      int count = readCount(in);
+      for (int i = 0; i < count; i++)
+      {
+        long id = in.readLong();
+        int farm = in.readInt();
+        int server = in.readInt();
+        long secret = in.readLong();
+        long originalSecret = in.readLong();
+        int originalFormat = in.readByte();
+        String title = readString(in);
+        int owner = in.readInt();
+        if (owner < 0 || owner >= ownerCount)
+        {
+          throw new IOException("Owner " + owner + " out of " + ownerCount);
+        }
+        photos.append(id, farm, server, secret, originalSecret, originalFormat, title, owners[owner], in.readInt());
+      }
+      return photos;
+    }
+    catch (IOException e)
+    {
+      // Truncated or from an older format, the network will refill it
+      return new InflikrPhotoTable(0);
+    }
+    finally
+    {
+      try
+      {
+        in.close();
+      }
+      catch (IOException e)
+      {}
+    }
+  }
+
+  /**
+   * Saves a copy of the list in the background, replacing the saved one.
+   */
+  public void saveAsync(InflikrPhotoTable photos)
+  {
+    final InflikrPhotoTable snapshot = photos.copy();
+    m_executor.execute(new Runnable()
+    {
+      public void run()
+      {
+        try
+        {
+          save(snapshot);
+        }
+        catch (IOException e)
+        {
+          // Keeps the previous list
+        }
+      }
+    });
+  }
+
+  /**
+   * Saves the list, does file I/O.
+   */
+  public void save(InflikrPhotoTable photos) throws IOException
+  {
+    File tmp = new File(m_file.getPath() + TMP_SUFFIX);
+    FileOutputStream fos = new FileOutputStream(tmp);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+    try
+    {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      int ownerCount = photos.getOwnerCount();
+      out.writeInt(ownerCount);
+      for (int i = 0; i < ownerCount; i++)
+      {
+        writeString(out, photos.m_ownerIds[i]);
+        writeString(out, photos.m_ownerNames[i]);
+        out.writeInt(photos.m_iconFarms[i]);
+        out.writeInt(photos.m_iconServers[i]);
+      }
+      out.writeInt(photos.size());
+      for (int i = 0; i < photos.size(); i++)
+      {
+        out.writeLong(photos.m_ids[i]);
+        out.writeInt(photos.m_farms[i]);
+        out.writeInt(photos.m_servers[i]);
+        out.writeLong(photos.m_secrets[i]);
+        out.writeLong(photos.m_originalSecrets[i]);
+        out.writeByte(photos.m_originalFormats[i]);
+        writeString(out, photos.m_titles[i]);
+        out.writeInt(photos.m_owners[i]);
+        out.writeInt(photos.m_dates[i]);
+      }
+      out.flush();
+      fos.getFD().sync();
+    }
+    finally
+    {
+      out.close();
+    }
+    if (!tmp.renameTo(m_file))
+    {
+      tmp.delete();
+      throw new IOException("Cannot rename " + tmp + " to " + m_file);
+    }
+  }
+
+  /**
+   * Stops the background saves once the pending ones are written.
+   */
+  public void close()
+  {
+    m_executor.shutdown();
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException
+  {
+    out.writeBoolean(value != null);
+    if (value != null)
+    {
+      out.writeUTF(value);
+    }
+  }
+
+  /**
+   * Reads a number of owners or photos, at most the photos the source keeps,
+   * before anything is allocated for them.
+   */
+  private static int readCount(DataInputStream in) throws IOException
+  {
+    int count = in.readInt();
+    if (count < 0 || count > InflikrPhotoSource.MAX_PHOTOS)
+    {
+      throw new IOException("Count " + count + " out of " + InflikrPhotoSource.MAX_PHOTOS);
+    }
+    return count;
+  }
+
+  private static String readString(DataInputStream in) throws IOException
+  {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+}
@@ -0,0 +1,498 @@
+//
+//  InflikrPhotoTable
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+
+package kr.infli;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.googlecode.flickrjandroid.util.UrlUtilities;
+
+/**
+ * Photos stored by columns of primitives, instead of a flickrj Photo, its
+ * User and two Dates per photo, so thousands of them fit in the heap 500 used
+ * to take.
+ *
+ * <p>
+ * A photo is its numeric id, farm, server and secrets, the URLs are built when
+ * asked for. Its date is packed in an int, the owners are stored once in a
+ * table the photos point to, the title is the only string of a photo. A table
+ * is only appended to or cleared and is not thread safe: the one filled by a
+ * search thread is handed over to the UI thread.
+ * </p>
+ */
+public final class InflikrPhotoTable
+{
+  // Kind of a packed date, in its 2 high bits
+  static final int NO_DATE = 0;
+  static final int DATE_TAKEN = 1;
+  static final int DATE_UPLOADED = 2;
+
+  // Original formats by code, 0 when the search did not return it
+  private static final String[] ORIGINAL_FORMATS = { null, "jpg", "png", "gif" };
+
+  private static final String[] MONTHS = { "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec" };
+
+  // A secret is up to 14 hex digits, its length above them
+  private static final int SECRET_LENGTH_SHIFT = 56;
+  private static final int MAX_SECRET_LENGTH = SECRET_LENGTH_SHIFT / 4;
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  private int m_size;
+
+  long[] m_ids;
+
+  int[] m_farms;
+
+  int[] m_servers;
+
+  long[] m_secrets;
+
+  // 0 when unknown
+  long[] m_originalSecrets;
+
+  byte[] m_originalFormats;
+
+  String[] m_titles;
+
+  // Index in the owner table
+  int[] m_owners;
+
+  int[] m_dates;
+
+  // By id, position + 1 in the open addressed slots, 0 for a free slot
+  private int[] m_idSlots;
+
+  private int m_ownerCount;
+
+  String[] m_ownerIds;
+
+  String[] m_ownerNames;
+
+  int[] m_iconFarms;
+
+  int[] m_iconServers;
+
+  private final Map<String, Integer> m_ownerIndexes = new HashMap<String, Integer>();
+
+  public InflikrPhotoTable()
+  {
+    this(INITIAL_CAPACITY);
+  }
+
+  public InflikrPhotoTable(int capacity)
+  {
+    capacity = Math.max(1, capacity);
+    m_ids = new long[capacity];
+    m_farms = new int[capacity];
+    m_servers = new int[capacity];
+    m_secrets = new long[capacity];
+    m_originalSecrets = new long[capacity];
+    m_originalFormats = new byte[capacity];
+    m_titles = new String[capacity];
+    m_owners = new int[capacity];
+    m_dates = new int[capacity];
+    m_idSlots = new int[slotCount(capacity)];
+    m_ownerIds = new String[capacity];
+    m_ownerNames = new String[capacity];
+    m_iconFarms = new int[capacity];
+    m_iconServers = new int[capacity];
+  }
+
+  public int size()
+  {
+    return m_size;
+  }
+
+  public boolean isEmpty()
+  {
+    return m_size == 0;
+  }
+
+  /**
+   * @return The Flickr id of the photo at this position, stable across
+   *         searches.
+   */
+  public long getId(int index)
+  {
+    return m_ids[index];
+  }
+
+  /**
+   * @return The first position of this photo, -1 if it is not in the table.
+   */
+  public int indexOf(long id)
+  {
+    int mask = m_idSlots.length - 1;
+    for (int slot = hash(id) & mask; m_idSlots[slot] != 0; slot = (slot + 1) & mask)
+    {
+      int index = m_idSlots[slot] - 1;
+      if (m_ids[index] == id)
+      {
+        return index;
+      }
+    }
+    return -1;
+  }
+
+  public boolean contains(long id)
+  {
+    return indexOf(id) >= 0;
+  }
+
+  /**
+   * @return The index of this owner, added unless it already is.
+   */
+  public int addOwner(String id, String name, int iconFarm, int iconServer)
+  {
+    Integer index = m_ownerIndexes.get(id);
+    if (index != null)
+    {
+      return index;
+    }
+    if (m_ownerCount == m_ownerIds.length)
+    {
+      int capacity = m_ownerCount * 2;
+      m_ownerIds = Arrays.copyOf(m_ownerIds, capacity);
+      m_ownerNames = Arrays.copyOf(m_ownerNames, capacity);
+      m_iconFarms = Arrays.copyOf(m_iconFarms, capacity);
+      m_iconServers = Arrays.copyOf(m_iconServers, capacity);
+    }
+    m_ownerIds[m_ownerCount] = id;
+    m_ownerNames[m_ownerCount] = name;
+    m_iconFarms[m_ownerCount] = iconFarm;
+    m_iconServers[m_ownerCount] = iconServer;
+    m_ownerIndexes.put(id, m_ownerCount);
+    return m_ownerCount++;
+  }
+
+  int getOwnerCount()
+  {
+    return m_ownerCount;
+  }
+
+  /**
+   * Appends a photo, even if it is already in the table.
+   *
+   * @param secret
+   *          Packed by {@link #parseSecret(String)}.
+   * @param owner
+   *          Returned by {@link #addOwner(String, String, int, int)}.
+   * @param date
+   *          Packed by {@link #packDate(int, int, int, int)}.
+   */
+  public void append(long id, int farm, int server, long secret, long originalSecret, int originalFormat, String title, int owner, int date)
+  {
+    if (m_size == m_ids.length)
+    {
+      grow(m_size * 2);
+    }
+    int index = m_size++;
+    m_ids[index] = id;
+    m_farms[index] = farm;
+    m_servers[index] = server;
+    m_secrets[index] = secret;
+    m_originalSecrets[index] = originalSecret;
+    m_originalFormats[index] = (byte) originalFormat;
+    m_titles[index] = title;
+    m_owners[index] = owner;
+    m_dates[index] = date;
+    index(index);
+  }
+
+  /**
+   * Appends the photo of another table at this position.
+   */
+  public void append(InflikrPhotoTable other, int index)
+  {
+    int owner = other.m_owners[index];
+    owner = addOwner(other.m_ownerIds[owner], other.m_ownerNames[owner], other.m_iconFarms[owner], other.m_iconServers[owner]);
+    append(other.m_ids[index], other.m_farms[index], other.m_servers[index], other.m_secrets[index], other.m_originalSecrets[index], other.m_originalFormats[index], other.m_titles[index], owner, other.m_dates[index]);
+  }
+
+  /**
+   * Removes every photo and owner, the capacity is kept.
+   */
+  public void clear()
+  {
+    Arrays.fill(m_titles, 0, m_size, null);
+    Arrays.fill(m_ownerIds, 0, m_ownerCount, null);
+    Arrays.fill(m_ownerNames, 0, m_ownerCount, null);
+    Arrays.fill(m_idSlots, 0);
+    m_ownerIndexes.clear();
+    m_size = 0;
+    m_ownerCount = 0;
+  }
+
+  /**
+   * @return A table with the same photos, for another thread.
+   */
+  public InflikrPhotoTable copy()
+  {
+    InflikrPhotoTable copy = new InflikrPhotoTable(m_size);
+    for (int i = 0; i < m_size; i++)
+    {
+      copy.append(this, i);
+    }
+    return copy;
+  }
+
+  /**
+   * @return The URL of the photo at this size, null for no size.
+   */
+  String getUrl(int index, InflikrSizePolicy.Size size)
+  {
+    if (size == null)
+    {
+      return null;
+    }
+    StringBuilder url = baseUrl(index);
+    appendSecret(url, m_secrets[index]);
+    switch (size)
+    {
+      case THUMBNAIL:
+        return url.append("_t.jpg").toString();
+      case SMALL:
+        return url.append("_m.jpg").toString();
+      case MEDIUM:
+        return url.append(".jpg").toString();
+      default:
+        return url.append("_b.jpg").toString();
+    }
+  }
+
+  /**
+   * @return The URL of the original size, null if the search did not return
+   *         its secret.
+   */
+  String getOriginalUrl(int index)
+  {
+    int format = m_originalFormats[index];
+    if (m_originalSecrets[index] == 0 || format <= 0 || format >= ORIGINAL_FORMATS.length)
+    {
+      return null;
+    }
+    StringBuilder url = baseUrl(index);
+    appendSecret(url, m_originalSecrets[index]);
+    return url.append("_o.").append(ORIGINAL_FORMATS[format]).toString();
+  }
+
+  String getAvatarUrl(int index)
+  {
+    int owner = m_owners[index];
+    return UrlUtilities.createBuddyIconUrl(m_iconFarms[owner], m_iconServers[owner], m_ownerIds[owner]);
+  }
+
+  /**
+   * @return The title and the owner, as the header of the row shows them.
+   */
+  String getTitleLine(int index)
+  {
+    String title = m_titles[index];
+    return " " + (title == null || title.equals("") ? "Untitled" : title) + " by " + m_ownerNames[m_owners[index]];
+  }
+
+  /**
+   * @return The date, as the footer of the row shows it.
+   */
+  String getDateLine(int index)
+  {
+    int date = m_dates[index];
+    int kind = date >>> 30;
+    if (kind == NO_DATE)
+    {
+      return "No date";
+    }
+    int day = date & 0x1f;
+    int month = (date >>> 5) & 0xf;
+    int year = (date >>> 9) & 0x1fffff;
+    // Like SimpleDateFormat("MMM, dd, yyyy", Locale.US)
+    return (kind == DATE_TAKEN ? "Taken on " : "Uploaded on ") + MONTHS[month - 1] + (day < 10 ? ", 0" : ", ") + day + ", " + year;
+  }
+
+  /**
+   * @param kind
+   *          DATE_TAKEN or DATE_UPLOADED.
+   * @param month
+   *          From 1 to 12.
+   * @return The date in an int, NO_DATE if it is not a valid one.
+   */
+  static int packDate(int kind, int year, int month, int day)
+  {
+    if (year <= 0 || year > 0x1fffff || month < 1 || month > 12 || day < 1 || day > 31)
+    {
+      return NO_DATE;
+    }
+    return kind << 30 | year << 9 | month << 5 | day;
+  }
+
+  /**
+   * @param dateTaken
+   *          As Flickr returns it, "2013-05-10 12:00:00", in the time zone of
+   *          the camera.
+   * @return The packed date, NO_DATE if it is missing or malformed.
+   */
+  static int parseDateTaken(String dateTaken)
+  {
+    if (dateTaken == null || dateTaken.length() < 10 || dateTaken.charAt(4) != '-' || dateTaken.charAt(7) != '-')
+    {
+      return NO_DATE;
+    }
+    try
+    {
+      int year = Integer.parseInt(dateTaken.substring(0, 4));
+      int month = Integer.parseInt(dateTaken.substring(5, 7));
+      int day = Integer.parseInt(dateTaken.substring(8, 10));
+      return packDate(DATE_TAKEN, year, month, day);
+    }
+    catch (NumberFormatException e)
+    {
+      return NO_DATE;
+    }
+  }
+
+  /**
+   * @param dateUpload
+   *          As Flickr returns it, in seconds since the epoch.
+   * @param calendar
+   *          In the default time zone, reused by the caller.
+   * @return The packed day of the upload, NO_DATE if it is missing or
+   *         malformed.
+   */
+  static int parseDateUpload(String dateUpload, Calendar calendar)
+  {
+    if (dateUpload == null)
+    {
+      return NO_DATE;
+    }
+    try
+    {
+      calendar.setTimeInMillis(Long.parseLong(dateUpload) * 1000);
+    }
+    catch (NumberFormatException e)
+    {
+      return NO_DATE;
+    }
+    return packDate(DATE_UPLOADED, calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH) + 1, calendar.get(Calendar.DAY_OF_MONTH));
+  }
+
+  /**
+   * @return The secret in a long, 0 for no secret, -1 if it is not made of
+   *         lower case hex digits like the ones of Flickr.
+   */
+  static long parseSecret(String secret)
+  {
+    if (secret == null || secret.length() == 0)
+    {
+      return 0;
+    }
+    int length = secret.length();
+    if (length > MAX_SECRET_LENGTH)
+    {
+      return -1;
+    }
+    long value = 0;
+    for (int i = 0; i < length; i++)
+    {
+      char c = secret.charAt(i);
+      int digit = c >= '0' && c <= '9' ? c - '0' : c >= 'a' && c <= 'f' ? c - 'a' + 10 : -1;
+      if (digit < 0)
+      {
+        return -1;
+      }
+      value = value << 4 | digit;
+    }
+    return (long) length << SECRET_LENGTH_SHIFT | value;
+  }
+
+  /**
+   * @return The code of this original format, 0 if unknown.
+   */
+  static int parseOriginalFormat(String format)
+  {
+    for (int i = 1; i < ORIGINAL_FORMATS.length; i++)
+    {
+      if (ORIGINAL_FORMATS[i].equals(format))
+      {
+        return i;
+      }
+    }
+    return 0;
+  }
+
+  private StringBuilder baseUrl(int index)
+  {
+    // Like flickrj-android Photo
+    StringBuilder url = new StringBuilder(64);
+    url.append("http://farm").append(m_farms[index]).append(".static.flickr.com/").append(m_servers[index]).append('/').append(m_ids[index]).append('_');
+    return url;
+  }
+
+  private static void appendSecret(StringBuilder url, long secret)
+  {
+    int length = (int) (secret >>> SECRET_LENGTH_SHIFT);
+    for (int shift = (length - 1) * 4; shift >= 0; shift -= 4)
+    {
+      url.append(Character.forDigit((int) (secret >>> shift) & 0xf, 16));
+    }
+  }
+
+  private void grow(int capacity)
+  {
+    m_ids = Arrays.copyOf(m_ids, capacity);
+    m_farms = Arrays.copyOf(m_farms, capacity);
+    m_servers = Arrays.copyOf(m_servers, capacity);
+    m_secrets = Arrays.copyOf(m_secrets, capacity);
+    m_originalSecrets = Arrays.copyOf(m_originalSecrets, capacity);
+    m_originalFormats = Arrays.copyOf(m_originalFormats, capacity);
+    m_titles = Arrays.copyOf(m_titles, capacity);
+    m_owners = Arrays.copyOf(m_owners, capacity);
+    m_dates = Arrays.copyOf(m_dates, capacity);
+    m_idSlots = new int[slotCount(capacity)];
+    for (int i = 0; i < m_size; i++)
+    {
+      index(i);
+    }
+  }
+
+  /**
+   * Adds the photo at this position to the id slots, unless its id already is.
+   */
+  private void index(int index)
+  {
+    long id = m_ids[index];
+    int mask = m_idSlots.length - 1;
+    int slot = hash(id) & mask;
+    while (m_idSlots[slot] != 0)
+    {
+      if (m_ids[m_idSlots[slot] - 1] == id)
+      {
+        return;
+      }
+      slot = (slot + 1) & mask;
+    }
+    m_idSlots[slot] = index + 1;
+  }
+
+  /**
+   * @return A power of two, at most half full.
+   */
+  private static int slotCount(int capacity)
+  {
+    return Integer.highestOneBit(Math.max(1, capacity) * 2 - 1) << 1;
+  }
+
+  private static int hash(long id)
+  {
+    // The ids are sequential, spread them over the slots
+    long h = id * 0x9e3779b97f4a7c15L;
+    return (int) (h ^ (h >>> 32));
+  }
+}
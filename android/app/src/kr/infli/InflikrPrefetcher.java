@@ -0,0 +1,182 @@
+//
+//  InflikrPrefetcher
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+
+package kr.infli;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import android.os.SystemClock;
+
+/**
+ * Warms the caches with the photos and avatars of the rows about to be
+ * scrolled in.
+ *
+ * <p>
+ * Fed by the scroll listener, it measures the scroll velocity to know the
+ * direction and prefetches the next rows that way, as many as the measured
+ * download rate allows. Prefetches run at the lowest priority and are
+ * cancelled when the direction changes or when their row leaves the window,
+ * including when it becomes visible and gets its own download.
+ * </p>
+ */
+public class InflikrPrefetcher
+{
+  static final String LOG_TAG = "InflikrPrefetcher";
+
+  private static final int MIN_ROWS = 2;
+  private static final int MAX_ROWS = 15;
+
+  // Prefetch what can be downloaded in that many seconds
+  private static final float PREFETCH_HORIZON = 2f;
+
+  // Weight of the last scroll step in the velocity
+  private static final float VELOCITY_SMOOTHING = 0.5f;
+
+  private final InflikrDownloader m_downloader;
+  private final InflikrSizePolicy m_sizePolicy;
+  private final int m_photoWidth;
+  private final int m_photoHeight;
+  private final int m_avatarSize;
+
+  // Prefetches by row position, only used from the UI thread
+  private final Map<Integer, List<InflikrFetchRegistry<?, ?>.Subscription>> m_prefetches = new HashMap<Integer, List<InflikrFetchRegistry<?, ?>.Subscription>>();
+
+  private int m_lastFirstVisibleItem = -1;
+  private long m_lastScrollTime;
+  // In rows per second, negative when scrolling up
+  private float m_velocity;
+  private int m_direction;
+
+  /**
+   * The sizes and the size policy must be the ones the rows download their
+   * images with, so the prefetched images are found in the cache.
+   */
+  public InflikrPrefetcher(InflikrDownloader downloader, InflikrSizePolicy sizePolicy, int photoWidth, int photoHeight, int avatarSize)
+  {
+    this.m_downloader = downloader;
+    this.m_sizePolicy = sizePolicy;
+    this.m_photoWidth = photoWidth;
+    this.m_photoHeight = photoHeight;
+    this.m_avatarSize = avatarSize;
+  }
+
+  /**
+   * To be called from AbsListView.OnScrollListener.onScroll.
+   */
+  public void onScroll(InflikrPhotoTable photos, int firstVisibleItem, int visibleItemCount)
+  {
+    if (photos == null || visibleItemCount == 0 || firstVisibleItem == m_lastFirstVisibleItem)
+    {
+      // onScroll fires for every pixel, only act when a row scrolls out
+      return;
+    }
+    long now = SystemClock.uptimeMillis();
+    if (m_lastFirstVisibleItem >= 0)
+    {
+      float velocity = (firstVisibleItem - m_lastFirstVisibleItem) * 1000f / Math.max(1, now - m_lastScrollTime);
+      m_velocity += VELOCITY_SMOOTHING * (velocity - m_velocity);
+    }
+    m_lastFirstVisibleItem = firstVisibleItem;
+    m_lastScrollTime = now;
+
+    int direction = m_velocity < 0 ? -1 : 1;
+    if (direction != m_direction)
+    {
+      // Those rows will not be seen soon
+      cancel();
+      m_direction = direction;
+    }
+
+    int ahead = rowsAhead();
+    int from;
+    int to;
+    if (direction > 0)
+    {
+      from = firstVisibleItem + visibleItemCount;
+      to = Math.min(photos.size(), from + ahead);
+    }
+    else
+    {
+      to = Math.min(photos.size(), firstVisibleItem);
+      from = Math.max(0, to - ahead);
+    }
+
+    Iterator<Map.Entry<Integer, List<InflikrFetchRegistry<?, ?>.Subscription>>> iterator = m_prefetches.entrySet().iterator();
+    while (iterator.hasNext())
+    {
+      Map.Entry<Integer, List<InflikrFetchRegistry<?, ?>.Subscription>> entry = iterator.next();
+      if (entry.getKey() < from || entry.getKey() >= to)
+      {
+        cancel(entry.getValue());
+        iterator.remove();
+      }
+    }
+
+    // Within a priority the last scheduled runs first, so the nearest rows are scheduled last
+    for (int i = 0; i < to - from; i++)
+    {
+      int position = direction > 0 ? to - 1 - i : from + i;
+      if (!m_prefetches.containsKey(position))
+      {
+        m_prefetches.put(position, prefetch(photos, position));
+      }
+    }
+  }
+
+  /**
+   * Cancels all the prefetches.
+   */
+  public void cancel()
+  {
+    for (List<InflikrFetchRegistry<?, ?>.Subscription> subscriptions : m_prefetches.values())
+    {
+      cancel(subscriptions);
+    }
+    m_prefetches.clear();
+  }
+
+  /**
+   * @return The number of rows worth prefetching, what the network can
+   *         download within the horizon.
+   */
+  private int rowsAhead()
+  {
+    int rows = (int) (m_downloader.getDownloadRate() * PREFETCH_HORIZON);
+    return Math.max(MIN_ROWS, Math.min(MAX_ROWS, rows));
+  }
+
+  /**
+   * Builds the URLs of the photo, its row may not be formatted yet.
+   */
+  private List<InflikrFetchRegistry<?, ?>.Subscription> prefetch(InflikrPhotoTable photos, int position)
+  {
+    List<InflikrFetchRegistry<?, ?>.Subscription> subscriptions = new ArrayList<InflikrFetchRegistry<?, ?>.Subscription>(2);
+    InflikrFetchRegistry<?, ?>.Subscription subscription = m_downloader.prefetch(photos.getAvatarUrl(position), m_avatarSize, m_avatarSize);
+    if (subscription != null)
+    {
+      subscriptions.add(subscription);
+    }
+    subscription = m_downloader.prefetch(photos.getUrl(position, m_sizePolicy.getBindSize()), m_photoWidth, m_photoHeight);
+    if (subscription != null)
+    {
+      subscriptions.add(subscription);
+    }
+    return subscriptions;
+  }
+
+  private static void cancel(List<InflikrFetchRegistry<?, ?>.Subscription> subscriptions)
+  {
+    for (InflikrFetchRegistry<?, ?>.Subscription subscription : subscriptions)
+    {
+      subscription.cancel();
+    }
+  }
+}
@@ -0,0 +1,65 @@
+//
+//  InflikrRetainedFragment
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+
+package kr.infli;
+
+import android.app.Fragment;
+import android.os.Bundle;
+
+/**
+ * Holds what must survive a configuration change: the photo source and the
+ * downloader with its caches, threads and downloads in flight. Retained, it is
+ * not destroyed with the activity when the device rotates, only when the
+ * activity really finishes.
+ */
+public class InflikrRetainedFragment extends Fragment
+{
+  static final String TAG = "InflikrRetainedFragment";
+
+  private InflikrPhotoSource m_photoSource;
+
+  private InflikrDownloader m_imageDownloader;
+
+  @Override
+  public void onCreate(Bundle savedInstanceState)
+  {
+    super.onCreate(savedInstanceState);
+    setRetainInstance(true);
+  }
+
+  /**
+   * @return The source, or null if the fragment was recreated after the
+   *         process was killed and must be set up again.
+   */
+  public InflikrPhotoSource getPhotoSource()
+  {
+    return m_photoSource;
+  }
+
+  public InflikrDownloader getImageDownloader()
+  {
+    return m_imageDownloader;
+  }
+
+  void setUp(InflikrPhotoSource photoSource, InflikrDownloader imageDownloader)
+  {
+    this.m_photoSource = photoSource;
+    this.m_imageDownloader = imageDownloader;
+  }
+
+  @Override
+  public void onDestroy()
+  {
+    super.onDestroy();
+    if (m_photoSource != null)
+    {
+      m_photoSource.close();
+      // The downloader keeps pooled connections for the life of the fragment
+      m_imageDownloader.close();
+    }
+  }
+}
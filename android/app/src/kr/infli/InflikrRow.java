@@ -0,0 +1,95 @@
+//
+//  InflikrRow
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+
+package kr.infli;
+
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.text.TextUtils;
+
+/**
+ * What a row displays for a photo of the table, formatted and laid out off the
+ * UI thread. Only the rows around the visible ones have one, kept by the
+ * formatter, so binding a row only copies references and drawing it only
+ * draws its layouts.
+ */
+public final class InflikrRow
+{
+  // Stable across reloads of the same photo
+  final long m_itemId;
+
+  final String m_titleLine;
+
+  final String m_dateLine;
+
+  final String m_thumbnailUrl;
+
+  final String m_smallUrl;
+
+  final String m_mediumUrl;
+
+  final String m_largeUrl;
+
+  // Null if the search did not return its secret
+  final String m_originalUrl;
+
+  final String m_avatarUrl;
+
+  // Drawn by the row view, with the paints they were laid out with
+  final Layout m_titleLayout;
+
+  final Layout m_dateLayout;
+
+  /**
+   * @param titlePaint
+   *          Not used by another thread, the layouts draw with it.
+   * @param datePaint
+   *          Not used by another thread either.
+   * @param titleWidth
+   *          The width of the title, it is ellipsized in the middle to fit.
+   */
+  InflikrRow(InflikrPhotoTable photos, int index, TextPaint titlePaint, TextPaint datePaint, int titleWidth)
+  {
+    this.m_itemId = photos.getId(index);
+    this.m_titleLine = photos.getTitleLine(index);
+    this.m_dateLine = photos.getDateLine(index);
+    this.m_thumbnailUrl = photos.getUrl(index, InflikrSizePolicy.Size.THUMBNAIL);
+    this.m_smallUrl = photos.getUrl(index, InflikrSizePolicy.Size.SMALL);
+    this.m_mediumUrl = photos.getUrl(index, InflikrSizePolicy.Size.MEDIUM);
+    this.m_largeUrl = photos.getUrl(index, InflikrSizePolicy.Size.LARGE);
+    this.m_originalUrl = photos.getOriginalUrl(index);
+    this.m_avatarUrl = photos.getAvatarUrl(index);
+    titleWidth = Math.max(1, titleWidth);
+    CharSequence title = TextUtils.ellipsize(m_titleLine, titlePaint, titleWidth, TextUtils.TruncateAt.MIDDLE);
+    this.m_titleLayout = new StaticLayout(title, titlePaint, titleWidth, Layout.Alignment.ALIGN_NORMAL, 1, 0, false);
+    int dateWidth = (int) Math.ceil(datePaint.measureText(m_dateLine));
+    this.m_dateLayout = new StaticLayout(m_dateLine, datePaint, Math.max(1, dateWidth), Layout.Alignment.ALIGN_NORMAL, 1, 0, false);
+  }
+
+  /**
+   * @return The URL of the photo at this size, null for no size.
+   */
+  String getUrl(InflikrSizePolicy.Size size)
+  {
+    if (size == null)
+    {
+      return null;
+    }
+    switch (size)
+    {
+      case THUMBNAIL:
+        return m_thumbnailUrl;
+      case SMALL:
+        return m_smallUrl;
+      case MEDIUM:
+        return m_mediumUrl;
+      default:
+        return m_largeUrl;
+    }
+  }
+}
@@ -0,0 +1,226 @@
+//
+//  InflikrRowFormatter
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+
+package kr.infli;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.os.Handler;
+import android.text.TextPaint;
+
+/**
+ * Formats and lays out the rows around the visible ones on a background
+ * thread, ahead of the scroll, so binding a row only copies references.
+ *
+ * <p>
+ * The rows are kept by position in a small ring, the window around the visible
+ * rows. A position is looked up without boxing and a row formatted for another
+ * photo, after the list was replaced, is formatted again. The photos to format
+ * are copied on the UI thread, the only one using the table.
+ * </p>
+ *
+ * <p>
+ * The text is laid out for the width of the style, the width of the list.
+ * Each chunk of rows is laid out with its own copy of the paints, which its
+ * layouts then draw with on the UI thread.
+ * </p>
+ */
+public class InflikrRowFormatter
+{
+  /**
+   * Called on the UI thread.
+   */
+  public interface Listener
+  {
+    /**
+     * Rows looked up before they were formatted are now available.
+     */
+    void onRowsFormatted();
+  }
+
+  // Rows kept around the visible ones, a power of 2
+  private static final int WINDOW = 64;
+
+  // Formatted before and after the visible rows
+  private static final int BEHIND = WINDOW / 4;
+  private static final int AHEAD = WINDOW / 2;
+
+  // Rows formatted and posted together
+  private static final int CHUNK = 8;
+
+  private final InflikrPhotoTable m_photos;
+  private final InflikrRowView.Style m_style;
+  private final Listener m_listener;
+  private final Handler m_uiHandler = new Handler();
+  private final ExecutorService m_executor = Executors.newSingleThreadExecutor();
+
+  // By position modulo the window, only used from the UI thread
+  private final InflikrRow[] m_rows = new InflikrRow[WINDOW];
+  // The position of each slot, requested or formatted, -1 for none
+  private final int[] m_positions = new int[WINDOW];
+
+  // A lookup found no row, the listener is called when rows come
+  private boolean m_missed;
+  private boolean m_closed;
+
+  public InflikrRowFormatter(InflikrPhotoTable photos, InflikrRowView.Style style, Listener listener)
+  {
+    this.m_photos = photos;
+    this.m_style = style;
+    this.m_listener = listener;
+    for (int i = 0; i < WINDOW; i++)
+    {
+      m_positions[i] = -1;
+    }
+  }
+
+  /**
+   * @return The row of the photo at this position, null if it is not formatted
+   *         yet, it is then requested.
+   */
+  public InflikrRow getRow(int position)
+  {
+    int slot = position & (WINDOW - 1);
+    InflikrRow row = m_rows[slot];
+    if (m_positions[slot] == position && row != null && row.m_itemId == m_photos.getId(position))
+    {
+      return row;
+    }
+    m_missed = true;
+    formatAround(position, position + 1);
+    return null;
+  }
+
+  /**
+   * Requests the rows around the visible ones which are not formatted yet, to
+   * be called when the list scrolls.
+   *
+   * @param last
+   *          Excluded.
+   */
+  public void formatAround(int first, int last)
+  {
+    if (m_closed)
+    {
+      return;
+    }
+    int from = Math.max(0, first - BEHIND);
+    int to = Math.min(m_photos.size(), Math.min(last + AHEAD, from + WINDOW));
+    InflikrPhotoTable photos = null;
+    int[] positions = null;
+    for (int position = from; position < to; position++)
+    {
+      if (isRequested(position))
+      {
+        continue;
+      }
+      if (photos == null)
+      {
+        photos = new InflikrPhotoTable(CHUNK);
+        positions = new int[CHUNK];
+      }
+      int slot = position & (WINDOW - 1);
+      m_positions[slot] = position;
+      m_rows[slot] = null;
+      positions[photos.size()] = position;
+      photos.append(m_photos, position);
+      if (photos.size() == CHUNK)
+      {
+        format(photos, positions);
+        photos = null;
+      }
+    }
+    if (photos != null)
+    {
+      format(photos, positions);
+    }
+  }
+
+  /**
+   * Stops formatting, the listener will not be called anymore.
+   */
+  public void close()
+  {
+    m_closed = true;
+    m_executor.shutdownNow();
+  }
+
+  /**
+   * @return true if the row at this position is formatted or on its way, for
+   *         the photo now at this position.
+   */
+  private boolean isRequested(int position)
+  {
+    int slot = position & (WINDOW - 1);
+    InflikrRow row = m_rows[slot];
+    return m_positions[slot] == position && (row == null || row.m_itemId == m_photos.getId(position));
+  }
+
+  private void format(final InflikrPhotoTable photos, final int[] positions)
+  {
+    m_executor.execute(new Runnable()
+    {
+      public void run()
+      {
+        TextPaint titlePaint = new TextPaint(m_style.m_titlePaint);
+        TextPaint datePaint = new TextPaint(m_style.m_datePaint);
+        int titleWidth = m_style.m_photoWidth - m_style.m_avatarSize;
+        final InflikrRow[] rows = new InflikrRow[photos.size()];
+        for (int i = 0; i < rows.length; i++)
+        {
+          rows[i] = new InflikrRow(photos, i, titlePaint, datePaint, titleWidth);
+        }
+        m_uiHandler.post(new Runnable()
+        {
+          public void run()
+          {
+            onFormatted(positions, rows);
+          }
+        });
+      }
+    });
+  }
+
+  private void onFormatted(int[] positions, InflikrRow[] rows)
+  {
+    if (m_closed)
+    {
+      return;
+    }
+    boolean installed = false;
+    int dropped = -1;
+    for (int i = 0; i < rows.length; i++)
+    {
+      int position = positions[i];
+      int slot = position & (WINDOW - 1);
+      if (m_positions[slot] != position || m_rows[slot] != null)
+      {
+        // Scrolled away meanwhile
+        continue;
+      }
+      if (position >= m_photos.size() || m_photos.getId(position) != rows[i].m_itemId)
+      {
+        // The list was replaced meanwhile
+        m_positions[slot] = -1;
+        dropped = position;
+        continue;
+      }
+      m_rows[slot] = rows[i];
+      installed = true;
+    }
+    if (dropped >= 0)
+    {
+      formatAround(dropped, dropped + 1);
+    }
+    if (installed && m_missed)
+    {
+      m_missed = false;
+      m_listener.onRowsFormatted();
+    }
+  }
+}
@@ -0,0 +1,268 @@
+//
+//  InflikrRowView
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+
+package kr.infli;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+import android.graphics.drawable.Drawable;
+import android.text.TextPaint;
+import android.view.View;
+
+/**
+ * A row of the list, measures and draws its header (avatar and title), photo
+ * and footer (date) itself instead of a hierarchy of layouts and image views.
+ *
+ * <p>
+ * The text layouts are built with the row by the formatter, for the width of
+ * the style, the view only draws them. The sticky header only moves at draw
+ * time: changing its offset invalidates the row, it does not lay anything
+ * out.
+ * </p>
+ */
+public class InflikrRowView extends View
+{
+  /**
+   * Sizes and paints shared by all the rows.
+   */
+  public static final class Style
+  {
+    final int m_headerHeight;
+    final int m_avatarSize;
+    final int m_photoWidth;
+    final int m_photoHeight;
+    final int m_footerHeight;
+    final int m_dateMargin;
+    // Copied by the formatter, which lays the text out with them
+    final TextPaint m_titlePaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+    final TextPaint m_datePaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+    final Paint m_headerPaint = new Paint();
+    final Paint m_bitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    public Style(Context context, Typeface font, int photoWidth, int photoHeight)
+    {
+      float density = context.getResources().getDisplayMetrics().density;
+      float scaledDensity = context.getResources().getDisplayMetrics().scaledDensity;
+      this.m_photoWidth = photoWidth;
+      this.m_photoHeight = photoHeight;
+      // The header is 45dp, the avatar fills its height
+      this.m_headerHeight = (int) (45 * density);
+      this.m_avatarSize = m_headerHeight;
+      this.m_dateMargin = (int) (20 * density);
+      m_titlePaint.setTypeface(font);
+      m_titlePaint.setTextSize(14 * scaledDensity);
+      m_titlePaint.setColor(Color.rgb(0, 99, 220));
+      m_datePaint.setTypeface(font);
+      m_datePaint.setTextSize(14 * scaledDensity);
+      m_datePaint.setColor(Color.rgb(255, 0, 132));
+      // White at 80%, the photo shows through when the header is over it
+      m_headerPaint.setColor(Color.argb(204, 255, 255, 255));
+      this.m_footerHeight = (int) (m_datePaint.getTextSize() * 1.5f + 8 * density);
+    }
+  }
+
+  private final Style m_style;
+
+  private final Slot m_avatar = new Slot(false);
+
+  private final Slot m_photo = new Slot(true);
+
+  private InflikrRow m_row;
+
+  // Sticky header translation
+  private int m_headerOffset;
+
+  // Reused by every draw
+  private final Rect m_src = new Rect();
+  private final Rect m_dst = new Rect();
+
+  public InflikrRowView(Context context, Style style)
+  {
+    super(context);
+    this.m_style = style;
+  }
+
+  /**
+   * Shows this row, the images are bound by the downloader to the targets.
+   * Null shows an empty row until it is formatted.
+   */
+  public void bind(InflikrRow row)
+  {
+    m_row = row;
+    // By default always reset the header to the top
+    m_headerOffset = 0;
+    invalidate();
+  }
+
+  public InflikrRow getRow()
+  {
+    return m_row;
+  }
+
+  public InflikrImageTarget getAvatarTarget()
+  {
+    return m_avatar;
+  }
+
+  public InflikrImageTarget getPhotoTarget()
+  {
+    return m_photo;
+  }
+
+  /**
+   * @return True once a bitmap of the photo is drawn, for the benchmarks.
+   */
+  public boolean isPhotoShown()
+  {
+    return m_photo.m_bitmap != null;
+  }
+
+  public int getHeaderHeight()
+  {
+    return m_style.m_headerHeight;
+  }
+
+  /**
+   * Moves the header down the row, only redraws it.
+   */
+  public void setHeaderOffset(int offset)
+  {
+    if (offset != m_headerOffset)
+    {
+      m_headerOffset = offset;
+      invalidate();
+    }
+  }
+
+  @Override
+  protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec)
+  {
+    int width = MeasureSpec.getMode(widthMeasureSpec) == MeasureSpec.UNSPECIFIED ? m_style.m_photoWidth : MeasureSpec.getSize(widthMeasureSpec);
+    setMeasuredDimension(width, m_style.m_headerHeight + m_style.m_photoHeight + m_style.m_footerHeight);
+  }
+
+  @Override
+  protected void onDraw(Canvas canvas)
+  {
+    int width = getWidth();
+    Style style = m_style;
+
+    int photoTop = style.m_headerHeight;
+    m_photo.draw(canvas, (width - style.m_photoWidth) / 2, photoTop, style.m_photoWidth, style.m_photoHeight);
+
+    if (m_row != null)
+    {
+      int footerTop = photoTop + style.m_photoHeight;
+      canvas.save();
+      canvas.translate(width - style.m_dateMargin - m_row.m_dateLayout.getWidth(), footerTop + (style.m_footerHeight - m_row.m_dateLayout.getHeight()) / 2);
+      m_row.m_dateLayout.draw(canvas);
+      canvas.restore();
+    }
+
+    // The header last, it may be over the photo
+    canvas.save();
+    canvas.translate(0, m_headerOffset);
+    canvas.drawRect(0, 0, width, style.m_headerHeight, style.m_headerPaint);
+    m_avatar.draw(canvas, 0, (style.m_headerHeight - style.m_avatarSize) / 2, style.m_avatarSize, style.m_avatarSize);
+    if (m_row != null)
+    {
+      canvas.translate(style.m_avatarSize, (style.m_headerHeight - m_row.m_titleLayout.getHeight()) / 2);
+      m_row.m_titleLayout.draw(canvas);
+    }
+    canvas.restore();
+  }
+
+  /**
+   * An image of the row, drawn centered in its box like an ImageView does.
+   */
+  private final class Slot implements InflikrImageTarget
+  {
+    private final boolean m_isPhoto;
+    private Bitmap m_bitmap;
+    private Drawable m_drawable;
+    // Hi-res upgrade being received, drawn over the bitmap
+    private Bitmap m_partial;
+    private float m_partialFraction;
+
+    Slot(boolean isPhoto)
+    {
+      this.m_isPhoto = isPhoto;
+    }
+
+    public void setImageBitmap(Bitmap bitmap)
+    {
+      m_bitmap = bitmap;
+      m_drawable = null;
+      m_partial = null;
+      invalidate();
+    }
+
+    public void setImageDrawable(Drawable drawable)
+    {
+      m_drawable = drawable;
+      m_bitmap = null;
+      m_partial = null;
+      invalidate();
+    }
+
+    public void setPartialImage(Bitmap partial, float fraction)
+    {
+      m_partial = partial;
+      m_partialFraction = fraction;
+      invalidate();
+    }
+
+    public Drawable getDrawable()
+    {
+      return m_drawable;
+    }
+
+    public Object getTag()
+    {
+      // The row may be formatted again for the same photo
+      return m_isPhoto && m_row != null ? Long.valueOf(m_row.m_itemId) : null;
+    }
+
+    void draw(Canvas canvas, int left, int top, int width, int height)
+    {
+      if (m_bitmap != null)
+      {
+        drawFitCenter(canvas, m_bitmap, left, top, width, height, 1);
+      }
+      else if (m_drawable != null)
+      {
+        m_drawable.setBounds(left, top, left + width, top + height);
+        m_drawable.draw(canvas);
+      }
+      if (m_partial != null)
+      {
+        // Scaled over the thumbnail, only the rows already received
+        drawFitCenter(canvas, m_partial, left, top, width, height, m_partialFraction);
+      }
+    }
+
+    /**
+     * Fit center, keeps the ratio. Only the top fraction of the bitmap is
+     * drawn.
+     */
+    private void drawFitCenter(Canvas canvas, Bitmap bitmap, int left, int top, int width, int height, float fraction)
+    {
+      float scale = Math.min((float) width / bitmap.getWidth(), (float) height / bitmap.getHeight());
+      int w = Math.round(bitmap.getWidth() * scale);
+      int h = Math.round(bitmap.getHeight() * scale);
+      int visible = Math.round(bitmap.getHeight() * fraction);
+      m_src.set(0, 0, bitmap.getWidth(), visible);
+      m_dst.set(left + (width - w) / 2, top + (height - h) / 2, left + (width + w) / 2, top + (height - h) / 2 + Math.round(visible * scale));
+      canvas.drawBitmap(bitmap, m_src, m_dst, m_style.m_bitmapPaint);
+    }
+  }
+}
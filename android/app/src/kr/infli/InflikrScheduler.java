@@ -0,0 +1,203 @@
+//
+//  InflikrScheduler
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+
+package kr.infli;
+
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the download work on a fixed number of threads, by priority.
+ *
+ * <p>
+ * Within a priority the last scheduled task runs first, so the rows bound last
+ * (the ones on screen after a fling) are served before the ones scrolled away.
+ * The queue is bounded: instead of rejecting new work, the least urgent queued
+ * task (lowest priority, then oldest) is dropped. A cancelled task leaves the
+ * queue right away.
+ * </p>
+ */
+public class InflikrScheduler
+{
+  /**
+   * From the most to the least urgent.
+   */
+  public enum Priority
+  {
+    THUMBNAIL, AVATAR, HIRES, PREFETCH
+  }
+
+  /**
+   * Implemented by the runnables which need to know they have been dropped
+   * from the queue and will never run.
+   */
+  public interface Droppable
+  {
+    void onDropped();
+  }
+
+  private final PriorityBlockingQueue<Runnable> m_queue = new PriorityBlockingQueue<Runnable>();
+  private final ThreadPoolExecutor m_executor;
+  private final int m_maxQueued;
+  private final AtomicLong m_sequence = new AtomicLong();
+  // Tasks dropped because the queue was full
+  private final AtomicLong m_droppedCount = new AtomicLong();
+
+  /**
+   * @param threads
+   *          The maximum number of tasks running at the same time.
+   * @param maxQueued
+   *          The maximum number of tasks waiting, the least urgent ones are
+   *          dropped above.
+   */
+  public InflikrScheduler(int threads, int maxQueued, ThreadFactory threadFactory)
+  {
+    this.m_maxQueued = maxQueued;
+    // The threads are all core threads, a task is always queued and never rejected
+    this.m_executor = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS, m_queue, threadFactory);
+  }
+
+  /**
+   * @return The task, to cancel it or to raise its priority.
+   */
+  public Task schedule(Runnable runnable, Priority priority)
+  {
+    Task task = new Task(runnable, priority);
+    m_executor.execute(task);
+    trimQueue();
+    return task;
+  }
+
+  /**
+   * @return The number of tasks waiting for a thread.
+   */
+  public int getQueueSize()
+  {
+    return m_queue.size();
+  }
+
+  /**
+   * @return The number of tasks dropped so far to keep the queue bounded.
+   */
+  public long getDroppedCount()
+  {
+    return m_droppedCount.get();
+  }
+
+  /**
+   * Stops the running tasks, the queued ones are dropped.
+   */
+  public void shutdownNow()
+  {
+    for (Runnable runnable : m_executor.shutdownNow())
+    {
+      ((Task) runnable).drop();
+    }
+  }
+
+  private void trimQueue()
+  {
+    while (m_queue.size() > m_maxQueued)
+    {
+      Task worst = null;
+      for (Runnable runnable : m_queue)
+      {
+        Task task = (Task) runnable;
+        if (worst == null || task.compareTo(worst) > 0)
+        {
+          worst = task;
+        }
+      }
+      if (worst != null && m_queue.remove(worst))
+      {
+        m_droppedCount.incrementAndGet();
+        worst.drop();
+      }
+    }
+  }
+
+  /**
+   * A scheduled runnable.
+   */
+  public class Task extends FutureTask<Void> implements Comparable<Task>
+  {
+    private final Runnable m_runnable;
+    // Only changed while out of the queue
+    private volatile Priority m_priority;
+    private volatile long m_sequence;
+
+    Task(Runnable runnable, Priority priority)
+    {
+      super(runnable, null);
+      this.m_runnable = runnable;
+      this.m_priority = priority;
+      this.m_sequence = InflikrScheduler.this.m_sequence.incrementAndGet();
+    }
+
+    public Priority getPriority()
+    {
+      return m_priority;
+    }
+
+    /**
+     * Moves the task ahead if it is still waiting and the priority is more
+     * urgent than its own.
+     */
+    public void promote(Priority priority)
+    {
+      if (priority.ordinal() < m_priority.ordinal() && m_queue.remove(this))
+      {
+        m_priority = priority;
+        m_sequence = InflikrScheduler.this.m_sequence.incrementAndGet();
+        try
+        {
+          m_executor.execute(this);
+        }
+        catch (RejectedExecutionException e)
+        {
+          // Shut down meanwhile
+          drop();
+        }
+      }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+      // Do not wait for a thread to find out it is cancelled
+      m_queue.remove(this);
+      return super.cancel(mayInterruptIfRunning);
+    }
+
+    void drop()
+    {
+      super.cancel(false);
+      if (m_runnable instanceof Droppable)
+      {
+        ((Droppable) m_runnable).onDropped();
+      }
+    }
+
+    /**
+     * The most urgent priority first, then the last scheduled first.
+     */
+    public int compareTo(Task task)
+    {
+      int order = m_priority.compareTo(task.m_priority);
+      if (order == 0)
+      {
+        order = m_sequence > task.m_sequence ? -1 : (m_sequence < task.m_sequence ? 1 : 0);
+      }
+      return order;
+    }
+  }
+}
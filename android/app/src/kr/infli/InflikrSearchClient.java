@@ -0,0 +1,356 @@
+//
+//  InflikrSearchClient
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+
+package kr.infli;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+import org.apache.http.HttpStatus;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.googlecode.flickrjandroid.Flickr;
+import com.googlecode.flickrjandroid.FlickrException;
+import com.googlecode.flickrjandroid.Parameter;
+import com.googlecode.flickrjandroid.REST;
+import com.googlecode.flickrjandroid.photos.SearchParameters;
+import com.googlecode.flickrjandroid.util.UrlUtilities;
+
+/**
+ * Searches photos like flickrj-android does, but hands the photos over in
+ * batches while the response is still being received, instead of once the
+ * whole page is read and parsed.
+ *
+ * <p>
+ * The JSON response is pull parsed straight into photo tables, without a
+ * flickrj-android Photo nor a JSONObject per photo, so the memory used is
+ * bounded by the batch size whatever the page size. The request goes through
+ * the transport of the application, the one of the downloads.
+ * </p>
+ */
+public class InflikrSearchClient
+{
+  /**
+   * Receives the photos, on the thread running the search.
+   */
+  public interface Receiver
+  {
+    /**
+     * @param photos
+     *          A new table for each batch, owned by the receiver.
+     */
+    void onPhotos(InflikrPhotoTable photos);
+  }
+
+  private final InflikrTransport m_transport;
+  private final String m_apiKey;
+
+  public InflikrSearchClient(InflikrTransport transport, String apiKey)
+  {
+    this.m_transport = transport;
+    this.m_apiKey = apiKey;
+  }
+
+  /**
+   * Runs the search, a thread interruption stops it between two photos.
+   *
+   * @param firstBatchSize
+   *          The number of photos of the first batch, smaller so the first
+   *          rows are shown sooner.
+   * @param batchSize
+   *          The number of photos of the next batches, the last one may be
+   *          smaller.
+   * @return The number of pages of the search.
+   */
+  public int search(SearchParameters searchParameters, int perPage, int page, int firstBatchSize, int batchSize, Receiver receiver) throws IOException, FlickrException
+  {
+    List<Parameter> parameters = new ArrayList<Parameter>();
+    parameters.add(new Parameter("method", "flickr.photos.search"));
+    parameters.add(new Parameter("api_key", m_apiKey));
+    parameters.addAll(searchParameters.getAsParameters());
+    parameters.add(new Parameter("per_page", perPage));
+    parameters.add(new Parameter("page", page));
+    parameters.add(new Parameter("format", "json"));
+    parameters.add(new Parameter("nojsoncallback", "1"));
+    String url = UrlUtilities.buildUrl(Flickr.DEFAULT_HOST, 80, REST.PATH, parameters).toString();
+
+    InflikrTransport.Request request = m_transport.newRequest(url);
+    InflikrTransport.Response response = request.execute();
+    try
+    {
+      int statusCode = response.getStatusCode();
+      if (statusCode != HttpStatus.SC_OK)
+      {
+        throw new IOException("Error " + statusCode + " while searching page " + page);
+      }
+      JsonReader reader = new JsonReader(new InputStreamReader(response.getContent(), "UTF-8"));
+      try
+      {
+        return readResponse(reader, firstBatchSize, batchSize, receiver);
+      }
+      finally
+      {
+        reader.close();
+      }
+    }
+    catch (InterruptedIOException e)
+    {
+      // Do not read the rest of the page to give the connection back
+      request.abort();
+      throw e;
+    }
+    finally
+    {
+      response.close();
+    }
+  }
+
+  /**
+   * Reads the search response, the photos are delivered as they are parsed:
+   *
+   * <pre>
+   *   {"photos":{"page":1,"pages":17,"perpage":30,"total":"500","photo":[{...},...]},"stat":"ok"}
+   *   {"stat":"fail","code":100,"message":"Invalid API Key"}
+   * </pre>
+   */
+  private static int readResponse(JsonReader reader, int firstBatchSize, int batchSize, Receiver receiver) throws IOException, FlickrException
+  {
+    int pages = -1;
+    String stat = null;
+    String code = null;
+    String message = null;
+    reader.beginObject();
+    while (reader.hasNext())
+    {
+      String name = reader.nextName();
+      if (name.equals("photos"))
+      {
+        pages = readPhotos(reader, firstBatchSize, batchSize, receiver);
+      }
+      else if (name.equals("stat"))
+      {
+        stat = reader.nextString();
+      }
+      else if (name.equals("code"))
+      {
+        code = reader.nextString();
+      }
+      else if (name.equals("message"))
+      {
+        message = reader.nextString();
+      }
+      else
+      {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    if (!"ok".equals(stat))
+    {
+      throw new FlickrException(code, message);
+    }
+    return pages;
+  }
+
+  /**
+   * @return The number of pages.
+   */
+  private static int readPhotos(JsonReader reader, int firstBatchSize, int batchSize, Receiver receiver) throws IOException
+  {
+    int pages = -1;
+    reader.beginObject();
+    while (reader.hasNext())
+    {
+      String name = reader.nextName();
+      if (name.equals("pages"))
+      {
+        pages = reader.nextInt();
+      }
+      else if (name.equals("photo"))
+      {
+        // The days of the uploads are the ones of the device, like SimpleDateFormat
+        Calendar calendar = Calendar.getInstance();
+        InflikrPhotoTable batch = new InflikrPhotoTable(firstBatchSize);
+        int size = firstBatchSize;
+        reader.beginArray();
+        while (reader.hasNext())
+        {
+          if (Thread.interrupted())
+          {
+            throw new InterruptedIOException("Search interrupted");
+          }
+          readPhoto(reader, batch, calendar);
+          if (batch.size() == size)
+          {
+            receiver.onPhotos(batch);
+            size = batchSize;
+            batch = new InflikrPhotoTable(size);
+          }
+        }
+        reader.endArray();
+        if (!batch.isEmpty())
+        {
+          receiver.onPhotos(batch);
+        }
+      }
+      else
+      {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return pages;
+  }
+
+  /**
+   * Reads a photo straight into the table, with its extras:
+   *
+   * <pre>
+   *   {"id":"8730461234","owner":"12345678@N00","secret":"2a4b6c8d0e","server":"7282","farm":8,"title":"...",
+   *    "originalsecret":"...","originalformat":"jpg","datetaken":"2013-05-10 12:00:00","dateupload":"1368000000",
+   *    "ownername":"...","iconserver":"3710","iconfarm":4}
+   * </pre>
+   *
+   * A photo whose id, server or secret is not like the ones of Flickr is
+   * skipped. One with such an original secret is kept, without an original.
+   */
+  private static void readPhoto(JsonReader reader, InflikrPhotoTable photos, Calendar calendar) throws IOException
+  {
+    String id = null;
+    String farm = null;
+    String server = null;
+    String secret = null;
+    String originalSecret = null;
+    String originalFormat = null;
+    String title = null;
+    String owner = null;
+    String ownerName = null;
+    String iconFarm = null;
+    String iconServer = null;
+    String dateTaken = null;
+    String dateUpload = null;
+    reader.beginObject();
+    while (reader.hasNext())
+    {
+      String name = reader.nextName();
+      JsonToken token = reader.peek();
+      if (token != JsonToken.STRING && token != JsonToken.NUMBER)
+      {
+        // Null, or an extra we do not keep
+        reader.skipValue();
+      }
+      else if (name.equals("id"))
+      {
+        id = reader.nextString();
+      }
+      else if (name.equals("farm"))
+      {
+        farm = reader.nextString();
+      }
+      else if (name.equals("server"))
+      {
+        server = reader.nextString();
+      }
+      else if (name.equals("secret"))
+      {
+        secret = reader.nextString();
+      }
+      else if (name.equals("originalsecret"))
+      {
+        originalSecret = reader.nextString();
+      }
+      else if (name.equals("originalformat"))
+      {
+        originalFormat = reader.nextString();
+      }
+      else if (name.equals("title"))
+      {
+        title = reader.nextString();
+      }
+      else if (name.equals("owner"))
+      {
+        owner = reader.nextString();
+      }
+      else if (name.equals("ownername"))
+      {
+        ownerName = reader.nextString();
+      }
+      else if (name.equals("iconfarm"))
+      {
+        iconFarm = reader.nextString();
+      }
+      else if (name.equals("iconserver"))
+      {
+        iconServer = reader.nextString();
+      }
+      else if (name.equals("datetaken"))
+      {
+        dateTaken = reader.nextString();
+      }
+      else if (name.equals("dateupload"))
+      {
+        dateUpload = reader.nextString();
+      }
+      else
+      {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+
+    long packedSecret = InflikrPhotoTable.parseSecret(secret);
+    // Only the full screen viewer needs it, it falls back to the large size
+    long packedOriginalSecret = Math.max(InflikrPhotoTable.parseSecret(originalSecret), 0);
+    long photoId;
+    int photoServer;
+    try
+    {
+      photoId = Long.parseLong(id);
+      photoServer = Integer.parseInt(server);
+    }
+    catch (NumberFormatException e)
+    {
+      return;
+    }
+    if (packedSecret <= 0)
+    {
+      return;
+    }
+    int date = InflikrPhotoTable.parseDateTaken(dateTaken);
+    if (date == InflikrPhotoTable.NO_DATE)
+    {
+      date = InflikrPhotoTable.parseDateUpload(dateUpload, calendar);
+    }
+    int ownerIndex = photos.addOwner(owner, ownerName, parseInt(iconFarm), parseInt(iconServer));
+    photos.append(photoId, parseInt(farm), photoServer, packedSecret, packedOriginalSecret, InflikrPhotoTable.parseOriginalFormat(originalFormat), title, ownerIndex, date);
+  }
+
+  /**
+   * @return The value, 0 if it is missing or malformed.
+   */
+  private static int parseInt(String value)
+  {
+    if (value == null)
+    {
+      return 0;
+    }
+    try
+    {
+      return Integer.parseInt(value);
+    }
+    catch (NumberFormatException e)
+    {
+      return 0;
+    }
+  }
+}
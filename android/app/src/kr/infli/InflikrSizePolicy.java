@@ -0,0 +1,132 @@
+//
+//  InflikrSizePolicy
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+
+package kr.infli;
+
+/**
+ * Chooses the Flickr size a row binds and the one it is upgraded to when the
+ * scroll stops, from the measured bandwidth and the width of the photos on
+ * screen.
+ *
+ * <p>
+ * The wanted size is the smallest one covering the photo width, so a high
+ * density screen wants a larger one. A row binds the largest size up to it
+ * which downloads within BIND_BUDGET, the upgrade is the largest size above it
+ * which downloads within UPGRADE_BUDGET. On a slow link the upgrade is skipped,
+ * on a fast one the wanted size is bound right away and there is nothing to
+ * upgrade. Until the bandwidth is known rows bind the small size and upgrade
+ * to the medium one.
+ * </p>
+ */
+public class InflikrSizePolicy
+{
+  // Time a bound image should take to download, in milliseconds
+  private static final int BIND_BUDGET = 400;
+
+  // Time an upgrade may take, the user is looking at the row meanwhile
+  private static final int UPGRADE_BUDGET = 2000;
+
+  /**
+   * The Flickr sizes, smallest first.
+   */
+  public enum Size
+  {
+    THUMBNAIL(100, 4 * 1024), SMALL(240, 15 * 1024), MEDIUM(500, 60 * 1024), LARGE(1024, 220 * 1024);
+
+    // Longest edge, in pixels
+    final int m_edge;
+
+    // Typical size of a photo JPEG, to estimate the download time
+    final int m_bytes;
+
+    private Size(int edge, int bytes)
+    {
+      this.m_edge = edge;
+      this.m_bytes = bytes;
+    }
+  }
+
+  private static final Size[] SIZES = Size.values();
+
+  private final InflikrBandwidthMeter m_meter;
+
+  private final Size m_wanted;
+
+  /**
+   * @param photoWidth
+   *          The width of the photos on screen, in pixels.
+   */
+  public InflikrSizePolicy(InflikrBandwidthMeter meter, int photoWidth)
+  {
+    this.m_meter = meter;
+    Size wanted = Size.LARGE;
+    for (Size size : SIZES)
+    {
+      if (size.m_edge >= photoWidth)
+      {
+        wanted = size;
+        break;
+      }
+    }
+    this.m_wanted = wanted;
+  }
+
+  /**
+   * @return The size a row binds.
+   */
+  public Size getBindSize()
+  {
+    float bytesPerSecond = m_meter.getBytesPerSecond();
+    if (bytesPerSecond <= 0)
+    {
+      return min(Size.SMALL, m_wanted);
+    }
+    Size bind = Size.THUMBNAIL;
+    for (Size size : SIZES)
+    {
+      if (size.ordinal() <= m_wanted.ordinal() && millis(size, bytesPerSecond) <= BIND_BUDGET)
+      {
+        bind = size;
+      }
+    }
+    return bind;
+  }
+
+  /**
+   * @return The size a row showing the bind size is upgraded to once the
+   *         scroll stops, or null if it is not worth it.
+   */
+  public Size getUpgradeSize()
+  {
+    Size bind = getBindSize();
+    float bytesPerSecond = m_meter.getBytesPerSecond();
+    if (bytesPerSecond <= 0)
+    {
+      Size upgrade = min(Size.MEDIUM, m_wanted);
+      return upgrade.ordinal() > bind.ordinal() ? upgrade : null;
+    }
+    Size upgrade = null;
+    for (Size size : SIZES)
+    {
+      if (size.ordinal() > bind.ordinal() && size.ordinal() <= m_wanted.ordinal() && millis(size, bytesPerSecond) <= UPGRADE_BUDGET)
+      {
+        upgrade = size;
+      }
+    }
+    return upgrade;
+  }
+
+  private static float millis(Size size, float bytesPerSecond)
+  {
+    return size.m_bytes * 1000f / bytesPerSecond;
+  }
+
+  private static Size min(Size a, Size b)
+  {
+    return a.ordinal() <= b.ordinal() ? a : b;
+  }
+}
@@ -0,0 +1,500 @@
+//
+//  InflikrTileLoader
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+
+package kr.infli;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Decodes the tiles of a large image with BitmapRegionDecoder, the image is
+ * never decoded whole.
+ *
+ * <p>
+ * The base is the whole image decoded with a large sample size, about the size
+ * of the screen. Tiles are TILE_SIZE pixels once decoded, for a power of two
+ * sample size, they are kept in their own LRU bounded in bytes. Tiles are
+ * decoded on a few threads, each with its own decoder as a decoder decodes one
+ * region at a time. Requests for tiles which are not visible anymore are
+ * cancelled.
+ * </p>
+ *
+ * <p>
+ * The decoders read a private copy of the image, deleted once the loader is
+ * closed, the entry of the disk cache it comes from may be evicted anytime.
+ * </p>
+ *
+ * <p>
+ * Everything but the decoding is done on the UI thread.
+ * </p>
+ */
+public class InflikrTileLoader
+{
+  static final String LOG_TAG = "InflikrTileLoader";
+
+  // Size of a decoded tile, in pixels
+  static final int TILE_SIZE = 256;
+
+  private static final int DECODE_THREADS = 2;
+  private static final int MAX_QUEUED_TILES = 32;
+
+  /**
+   * Told when a tile or the base is decoded, on the UI thread.
+   */
+  public interface Listener
+  {
+    void onTileLoaded();
+  }
+
+  private final File m_file;
+  private final int m_width;
+  private final int m_height;
+
+  private final InflikrScheduler m_scheduler = new InflikrScheduler(DECODE_THREADS, MAX_QUEUED_TILES, Executors.defaultThreadFactory());
+
+  private final InflikrMemoryCache<TileKey, Bitmap> m_tiles;
+
+  // Requested and not decoded yet, only used from the UI thread
+  private final Map<TileKey, InflikrScheduler.Task> m_pending = new HashMap<TileKey, InflikrScheduler.Task>();
+
+  // Decoders not decoding, and all of them to recycle them once closed
+  private final List<BitmapRegionDecoder> m_freeDecoders = new ArrayList<BitmapRegionDecoder>(DECODE_THREADS);
+  private final List<BitmapRegionDecoder> m_decoders = new ArrayList<BitmapRegionDecoder>(DECODE_THREADS);
+
+  private final Handler m_uiHandler = new Handler(Looper.getMainLooper());
+
+  private Listener m_listener;
+
+  private Bitmap m_base;
+
+  // Looks the tiles up without allocating, only used from the UI thread
+  private final TileKey m_lookup = new TileKey(0, 0, 0);
+
+  private int m_baseSample;
+
+  private volatile boolean m_closed;
+
+  private InflikrTileLoader(File file, BitmapRegionDecoder decoder, int cacheSize)
+  {
+    this.m_file = file;
+    this.m_width = decoder.getWidth();
+    this.m_height = decoder.getHeight();
+    m_decoders.add(decoder);
+    m_freeDecoders.add(decoder);
+    m_tiles = new InflikrMemoryCache<TileKey, Bitmap>(cacheSize, new InflikrMemoryCache.Weigher<Bitmap>()
+    {
+      public int weightOf(Bitmap bitmap)
+      {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+      }
+    }, new InflikrMemoryCache.RemovalListener<TileKey, Bitmap>()
+    {
+      public void onRemoved(TileKey key, Bitmap bitmap)
+      {
+        // Evicted by a put on the UI thread, nothing draws it anymore
+        bitmap.recycle();
+      }
+    });
+  }
+
+  /**
+   * Copies the image and reads its header, does file I/O.
+   *
+   * @param in
+   *          The image, read to its end but not closed.
+   * @param directory
+   *          Where the copy goes. The copies left there by a crash are
+   *          deleted.
+   * @param cacheSize
+   *          The bytes of the decoded tiles kept in memory.
+   */
+  public static InflikrTileLoader open(InputStream in, File directory, int cacheSize) throws IOException
+  {
+    File[] leftovers = directory.listFiles();
+    if (leftovers != null)
+    {
+      for (File leftover : leftovers)
+      {
+        leftover.delete();
+      }
+    }
+    else if (!directory.mkdirs())
+    {
+      throw new IOException("Cannot create " + directory);
+    }
+    File file = File.createTempFile("tiles", null, directory);
+    try
+    {
+      copy(in, file);
+      return new InflikrTileLoader(file, BitmapRegionDecoder.newInstance(file.getPath(), false), cacheSize);
+    }
+    catch (IOException e)
+    {
+      file.delete();
+      throw e;
+    }
+  }
+
+  private static void copy(InputStream in, File file) throws IOException
+  {
+    FileOutputStream out = new FileOutputStream(file);
+    try
+    {
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1)
+      {
+        out.write(buffer, 0, read);
+      }
+    }
+    finally
+    {
+      out.close();
+    }
+  }
+
+  public void setListener(Listener listener)
+  {
+    this.m_listener = listener;
+  }
+
+  public int getWidth()
+  {
+    return m_width;
+  }
+
+  public int getHeight()
+  {
+    return m_height;
+  }
+
+  /**
+   * @return The base or null while it is decoded.
+   */
+  public Bitmap getBase()
+  {
+    return m_base;
+  }
+
+  /**
+   * @return The sample size of the base, 0 if it was not requested yet.
+   */
+  public int getBaseSample()
+  {
+    return m_baseSample;
+  }
+
+  /**
+   * Decodes the base with this sample size, unless it already is.
+   */
+  public void loadBase(int sample)
+  {
+    if (m_baseSample == sample)
+    {
+      return;
+    }
+    if (m_base != null)
+    {
+      m_base.recycle();
+      m_base = null;
+    }
+    m_baseSample = sample;
+    schedule(new TileKey(sample, TileKey.BASE, TileKey.BASE), InflikrScheduler.Priority.THUMBNAIL);
+  }
+
+  /**
+   * Called for every visible tile of every frame, only a tile requested
+   * allocates its key.
+   *
+   * @return The tile if it is decoded, otherwise null and the tile is
+   *         requested.
+   */
+  public Bitmap getTile(int sample, int column, int row)
+  {
+    m_lookup.m_sample = sample;
+    m_lookup.m_column = column;
+    m_lookup.m_row = row;
+    Bitmap tile = m_tiles.get(m_lookup);
+    if (tile == null && !m_pending.containsKey(m_lookup))
+    {
+      schedule(new TileKey(sample, column, row), InflikrScheduler.Priority.HIRES);
+    }
+    return tile;
+  }
+
+  /**
+   * Cancels the requested tiles which are not visible anymore, the base is
+   * kept.
+   *
+   * @param visible
+   *          The columns and rows of the tiles visible at this sample size,
+   *          right and bottom excluded.
+   */
+  public void retainPending(int sample, Rect visible)
+  {
+    Iterator<Map.Entry<TileKey, InflikrScheduler.Task>> entries = m_pending.entrySet().iterator();
+    while (entries.hasNext())
+    {
+      Map.Entry<TileKey, InflikrScheduler.Task> entry = entries.next();
+      TileKey key = entry.getKey();
+      if (!key.isBase() && (key.m_sample != sample || !visible.contains(key.m_column, key.m_row)))
+      {
+        entry.getValue().cancel(false);
+        entries.remove();
+      }
+    }
+  }
+
+  /**
+   * Stops the decoding and frees the tiles. The loader must not be used
+   * anymore.
+   */
+  public void close()
+  {
+    m_closed = true;
+    m_scheduler.shutdownNow();
+    m_pending.clear();
+    m_tiles.clear();
+    if (m_base != null)
+    {
+      m_base.recycle();
+      m_base = null;
+    }
+    synchronized (m_decoders)
+    {
+      // The ones decoding are recycled when they are done
+      for (BitmapRegionDecoder decoder : m_freeDecoders)
+      {
+        decoder.recycle();
+      }
+      m_freeDecoders.clear();
+    }
+    // The decoders opened keep reading it until they are recycled
+    m_file.delete();
+  }
+
+  private void schedule(TileKey key, InflikrScheduler.Priority priority)
+  {
+    if (!m_closed)
+    {
+      TileDecode decode = new TileDecode(key);
+      decode.m_task = m_scheduler.schedule(decode, priority);
+      m_pending.put(key, decode.m_task);
+    }
+  }
+
+  private BitmapRegionDecoder acquireDecoder() throws IOException
+  {
+    synchronized (m_decoders)
+    {
+      if (!m_freeDecoders.isEmpty())
+      {
+        return m_freeDecoders.remove(m_freeDecoders.size() - 1);
+      }
+    }
+    // One per decoding thread at most, opened out of the lock
+    BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(m_file.getPath(), false);
+    synchronized (m_decoders)
+    {
+      m_decoders.add(decoder);
+    }
+    return decoder;
+  }
+
+  private void releaseDecoder(BitmapRegionDecoder decoder)
+  {
+    synchronized (m_decoders)
+    {
+      if (m_closed)
+      {
+        decoder.recycle();
+      }
+      else
+      {
+        m_freeDecoders.add(decoder);
+      }
+    }
+  }
+
+  /**
+   * Back on the UI thread with the decoded tile, or null.
+   */
+  private void onDecoded(TileDecode decode, Bitmap bitmap)
+  {
+    TileKey key = decode.m_key;
+    // A cancelled decode may finish after the tile was requested again
+    if (m_pending.get(key) == decode.m_task)
+    {
+      m_pending.remove(key);
+    }
+    if (bitmap == null)
+    {
+      return;
+    }
+    if (m_closed || (key.isBase() && key.m_sample != m_baseSample))
+    {
+      bitmap.recycle();
+      return;
+    }
+    if (key.isBase())
+    {
+      m_base = bitmap;
+    }
+    else
+    {
+      m_tiles.put(key, bitmap);
+    }
+    if (m_listener != null)
+    {
+      m_listener.onTileLoaded();
+    }
+  }
+
+  /**
+   * Decodes one tile on a thread of the scheduler.
+   */
+  private class TileDecode implements Runnable, InflikrScheduler.Droppable
+  {
+    private final TileKey m_key;
+    // Set when scheduled, read back on the UI thread
+    InflikrScheduler.Task m_task;
+
+    TileDecode(TileKey key)
+    {
+      this.m_key = key;
+    }
+
+    public void run()
+    {
+      Bitmap bitmap = null;
+      if (!m_closed)
+      {
+        try
+        {
+          BitmapRegionDecoder decoder = acquireDecoder();
+          try
+          {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = m_key.m_sample;
+            // No alpha in a photo, half the memory of ARGB_8888
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+            bitmap = decoder.decodeRegion(m_key.getRegion(m_width, m_height), options);
+          }
+          finally
+          {
+            releaseDecoder(decoder);
+          }
+        }
+        catch (IOException e)
+        {
+          Log.w(LOG_TAG, "Cannot open " + m_file, e);
+        }
+        catch (IllegalArgumentException e)
+        {
+          Log.w(LOG_TAG, "Cannot decode " + m_key, e);
+        }
+      }
+      post(bitmap);
+    }
+
+    /**
+     * Dropped from a full queue, it will be requested again if still visible.
+     */
+    public void onDropped()
+    {
+      post(null);
+    }
+
+    private void post(final Bitmap bitmap)
+    {
+      m_uiHandler.post(new Runnable()
+      {
+        public void run()
+        {
+          onDecoded(TileDecode.this, bitmap);
+        }
+      });
+    }
+  }
+
+  /**
+   * A tile of the grid of a sample size, or the base.
+   */
+  static final class TileKey
+  {
+    static final int BASE = -1;
+
+    // Only the lookup key of the loader changes, the keys stored never do
+    int m_sample;
+    int m_column;
+    int m_row;
+
+    TileKey(int sample, int column, int row)
+    {
+      this.m_sample = sample;
+      this.m_column = column;
+      this.m_row = row;
+    }
+
+    boolean isBase()
+    {
+      return m_column == BASE;
+    }
+
+    /**
+     * @return The part of the image covered by this tile, in image pixels.
+     */
+    Rect getRegion(int width, int height)
+    {
+      if (isBase())
+      {
+        return new Rect(0, 0, width, height);
+      }
+      int span = TILE_SIZE * m_sample;
+      return new Rect(m_column * span, m_row * span, Math.min(width, (m_column + 1) * span), Math.min(height, (m_row + 1) * span));
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof TileKey))
+      {
+        return false;
+      }
+      TileKey key = (TileKey) o;
+      return m_sample == key.m_sample && m_column == key.m_column && m_row == key.m_row;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return 31 * (31 * m_sample + m_column) + m_row;
+    }
+
+    @Override
+    public String toString()
+    {
+      return "1/" + m_sample + " (" + m_column + ", " + m_row + ")";
+    }
+  }
+}
@@ -0,0 +1,241 @@
+//
+//  InflikrTileView
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+
+package kr.infli;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+/**
+ * Shows a large image which can be zoomed and panned, drawing the base of the
+ * tile loader and over it the decoded tiles visible at the current zoom.
+ *
+ * <p>
+ * The tiles are of the largest sample size still showing every screen pixel,
+ * only the visible ones are requested. While they are decoded the base, scaled
+ * up, fills the gaps.
+ * </p>
+ */
+public class InflikrTileView extends View implements InflikrTileLoader.Listener
+{
+  // Screen pixels per image pixel at the maximum zoom
+  private static final float MAX_SCALE = 2;
+
+  private InflikrTileLoader m_loader;
+
+  // Screen pixels per image pixel, the image fits in the view at the minimum
+  private float m_scale;
+
+  private float m_minScale;
+
+  // Position of the image top left corner in the view
+  private float m_translateX;
+
+  private float m_translateY;
+
+  private final ScaleGestureDetector m_scaleDetector;
+
+  private final GestureDetector m_gestureDetector;
+
+  private final Paint m_paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+  // Reused by every draw
+  private final Rect m_dst = new Rect();
+  // The columns and rows of the visible tiles
+  private final Rect m_visible = new Rect();
+
+  public InflikrTileView(Context context)
+  {
+    super(context);
+    m_scaleDetector = new ScaleGestureDetector(context, new ScaleGestureDetector.SimpleOnScaleGestureListener()
+    {
+      @Override
+      public boolean onScale(ScaleGestureDetector detector)
+      {
+        zoom(m_scale * detector.getScaleFactor(), detector.getFocusX(), detector.getFocusY());
+        return true;
+      }
+    });
+    m_gestureDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener()
+    {
+      @Override
+      public boolean onDown(MotionEvent e)
+      {
+        return true;
+      }
+
+      @Override
+      public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY)
+      {
+        if (m_loader == null)
+        {
+          return false;
+        }
+        m_translateX -= distanceX;
+        m_translateY -= distanceY;
+        clamp();
+        invalidate();
+        return true;
+      }
+
+      @Override
+      public boolean onDoubleTap(MotionEvent e)
+      {
+        // Full resolution, or back to fit
+        zoom(m_scale < 1 ? 1 : m_minScale, e.getX(), e.getY());
+        return true;
+      }
+    });
+  }
+
+  /**
+   * Shows the image of this loader, fitted in the view.
+   */
+  public void setLoader(InflikrTileLoader loader)
+  {
+    m_loader = loader;
+    loader.setListener(this);
+    fit();
+  }
+
+  public void onTileLoaded()
+  {
+    invalidate();
+  }
+
+  @Override
+  protected void onSizeChanged(int w, int h, int oldw, int oldh)
+  {
+    super.onSizeChanged(w, h, oldw, oldh);
+    fit();
+  }
+
+  @Override
+  public boolean onTouchEvent(MotionEvent event)
+  {
+    m_scaleDetector.onTouchEvent(event);
+    m_gestureDetector.onTouchEvent(event);
+    return true;
+  }
+
+  @Override
+  protected void onDraw(Canvas canvas)
+  {
+    if (m_loader == null)
+    {
+      return;
+    }
+    int width = m_loader.getWidth();
+    int height = m_loader.getHeight();
+    canvas.save();
+    canvas.translate(m_translateX, m_translateY);
+    canvas.scale(m_scale, m_scale);
+
+    // Drawn in image pixels from here
+    Bitmap base = m_loader.getBase();
+    if (base != null)
+    {
+      m_dst.set(0, 0, width, height);
+      canvas.drawBitmap(base, null, m_dst, m_paint);
+    }
+
+    int sample = tileSample();
+    m_visible.setEmpty();
+    if (sample < m_loader.getBaseSample())
+    {
+      // The part of the image in the view
+      int left = Math.max(0, (int) (-m_translateX / m_scale));
+      int top = Math.max(0, (int) (-m_translateY / m_scale));
+      int right = Math.min(width, (int) Math.ceil((getWidth() - m_translateX) / m_scale));
+      int bottom = Math.min(height, (int) Math.ceil((getHeight() - m_translateY) / m_scale));
+      int span = InflikrTileLoader.TILE_SIZE * sample;
+      m_visible.set(left / span, top / span, (right + span - 1) / span, (bottom + span - 1) / span);
+      for (int row = m_visible.top; row < m_visible.bottom; row++)
+      {
+        for (int column = m_visible.left; column < m_visible.right; column++)
+        {
+          Bitmap tile = m_loader.getTile(sample, column, row);
+          if (tile != null)
+          {
+            m_dst.set(column * span, row * span, Math.min(width, (column + 1) * span), Math.min(height, (row + 1) * span));
+            canvas.drawBitmap(tile, null, m_dst, m_paint);
+          }
+        }
+      }
+    }
+    // Scrolled or zoomed away, no need to decode them anymore
+    m_loader.retainPending(sample, m_visible);
+    canvas.restore();
+  }
+
+  /**
+   * @return The largest power of two sample size still giving at least one
+   *         image pixel per screen pixel.
+   */
+  private int tileSample()
+  {
+    int sample = 1;
+    while (sample * 2 * m_scale <= 1)
+    {
+      sample *= 2;
+    }
+    return sample;
+  }
+
+  private void fit()
+  {
+    if (m_loader == null || getWidth() == 0 || getHeight() == 0)
+    {
+      return;
+    }
+    int width = m_loader.getWidth();
+    int height = m_loader.getHeight();
+    m_minScale = Math.min((float) getWidth() / width, (float) getHeight() / height);
+    m_scale = m_minScale;
+    clamp();
+    // The base covers the view when the image fits
+    m_loader.loadBase(InflikrDownloader.sampleSize(width, height, getWidth(), getHeight()));
+    invalidate();
+  }
+
+  /**
+   * Zooms keeping the focus point in place.
+   */
+  private void zoom(float scale, float focusX, float focusY)
+  {
+    if (m_loader == null)
+    {
+      return;
+    }
+    float newScale = Math.max(m_minScale, Math.min(Math.max(m_minScale, MAX_SCALE), scale));
+    float factor = newScale / m_scale;
+    m_translateX = focusX - (focusX - m_translateX) * factor;
+    m_translateY = focusY - (focusY - m_translateY) * factor;
+    m_scale = newScale;
+    clamp();
+    invalidate();
+  }
+
+  /**
+   * Centers the image when it is smaller than the view, otherwise keeps the
+   * view inside it.
+   */
+  private void clamp()
+  {
+    float scaledWidth = m_loader.getWidth() * m_scale;
+    float scaledHeight = m_loader.getHeight() * m_scale;
+    m_translateX = scaledWidth <= getWidth() ? (getWidth() - scaledWidth) / 2 : Math.min(0, Math.max(getWidth() - scaledWidth, m_translateX));
+    m_translateY = scaledHeight <= getHeight() ? (getHeight() - scaledHeight) / 2 : Math.min(0, Math.max(getHeight() - scaledHeight, m_translateY));
+  }
+}
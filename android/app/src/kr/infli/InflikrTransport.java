@@ -0,0 +1,63 @@
+//
+//  InflikrTransport
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+
+package kr.infli;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * How the application reaches Flickr: the image downloads and the API calls.
+ * The network one is InflikrHttpTransport, InflikrLoopbackTransport sends
+ * everything to a local fixture server instead, so the caching and scheduling
+ * can be measured without a network.
+ */
+public interface InflikrTransport
+{
+  /**
+   * A GET request, executed once.
+   */
+  interface Request
+  {
+    /**
+     * Blocks until the headers are received.
+     */
+    Response execute() throws IOException;
+
+    /**
+     * Aborts the request from any thread, a blocked execute or read throws.
+     */
+    void abort();
+  }
+
+  /**
+   * The response of a request, to close once read.
+   */
+  interface Response
+  {
+    int getStatusCode();
+
+    /**
+     * @return The length of the content, -1 if unknown.
+     */
+    long getContentLength();
+
+    InputStream getContent() throws IOException;
+
+    /**
+     * Gives the connection back, the content is not readable anymore.
+     */
+    void close();
+  }
+
+  Request newRequest(String url);
+
+  /**
+   * Releases the connections, the transport must not be used anymore.
+   */
+  void shutdown();
+}
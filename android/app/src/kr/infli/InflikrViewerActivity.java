@@ -0,0 +1,176 @@
+//
+//  InflikrViewerActivity
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+
+package kr.infli;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.app.Activity;
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Color;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.Gravity;
+import android.view.Window;
+import android.widget.FrameLayout;
+import android.widget.ProgressBar;
+import android.widget.Toast;
+
+/**
+ * Shows a photo full screen at its largest size, zoomable down to its pixels.
+ * The image is streamed to the disk cache, copied, then decoded by tiles, never
+ * whole.
+ */
+public class InflikrViewerActivity extends Activity
+{
+  static final String LOG_TAG = "InflikrViewerActivity";
+
+  static final String EXTRA_URL = "kr.infli.URL";
+
+  // Fraction of the application memory class given to the decoded tiles
+  private static final int TILE_CACHE_FRACTION = 8;
+
+  // The copy of the image the tiles are decoded from, in the cache directory
+  private static final String TILES_DIRECTORY = "tiles";
+
+  private InflikrTileView m_tileView;
+
+  private ProgressBar m_progressBar;
+
+  private OpenTask m_openTask;
+
+  private InflikrTileLoader m_loader;
+
+  /**
+   * @return The intent showing this photo, at its original size when the search
+   *         returned its secret, the large one otherwise.
+   */
+  static Intent newIntent(Context context, InflikrRow row)
+  {
+    String url = row.m_originalUrl != null ? row.m_originalUrl : row.m_largeUrl;
+    Intent intent = new Intent(context, InflikrViewerActivity.class);
+    intent.putExtra(EXTRA_URL, url);
+    return intent;
+  }
+
+  @Override
+  protected void onCreate(Bundle savedInstanceState)
+  {
+    this.requestWindowFeature(Window.FEATURE_NO_TITLE);
+    super.onCreate(savedInstanceState);
+
+    FrameLayout layout = new FrameLayout(this);
+    layout.setBackgroundColor(Color.BLACK);
+    m_tileView = new InflikrTileView(this);
+    layout.addView(m_tileView, new FrameLayout.LayoutParams(FrameLayout.LayoutParams.MATCH_PARENT, FrameLayout.LayoutParams.MATCH_PARENT));
+    m_progressBar = new ProgressBar(this);
+    layout.addView(m_progressBar, new FrameLayout.LayoutParams(FrameLayout.LayoutParams.WRAP_CONTENT, FrameLayout.LayoutParams.WRAP_CONTENT, Gravity.CENTER));
+    setContentView(layout);
+
+    ActivityManager activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+    int cacheSize = activityManager.getMemoryClass() * 1024 * 1024 / TILE_CACHE_FRACTION;
+    m_openTask = new OpenTask(getIntent().getStringExtra(EXTRA_URL), cacheSize);
+    m_openTask.execute();
+  }
+
+  @Override
+  protected void onDestroy()
+  {
+    super.onDestroy();
+    // The open task closes the loader it was opening
+    m_openTask.cancel(false);
+    if (m_loader != null)
+    {
+      m_loader.close();
+    }
+  }
+
+  /**
+   * Downloads the image to the disk cache and reads its header.
+   */
+  private class OpenTask extends AsyncTask<Void, Void, InflikrTileLoader>
+  {
+    private final Context m_context = getApplicationContext();
+    private final File m_directory = new File(getCacheDir(), TILES_DIRECTORY);
+    private final String m_url;
+    private final int m_cacheSize;
+
+    OpenTask(String url, int cacheSize)
+    {
+      this.m_url = url;
+      this.m_cacheSize = cacheSize;
+    }
+
+    @Override
+    protected InflikrTileLoader doInBackground(Void... params)
+    {
+      // A single download, its connection is not worth keeping
+      InflikrTransport transport = InflikrActivity.newTransport();
+      InputStream in;
+      try
+      {
+        in = InflikrDownloader.openFromDiskCache(m_context, transport, m_url);
+      }
+      finally
+      {
+        transport.shutdown();
+      }
+      if (in == null)
+      {
+        return null;
+      }
+      try
+      {
+        return InflikrTileLoader.open(in, m_directory, m_cacheSize);
+      }
+      catch (IOException e)
+      {
+        Log.w(LOG_TAG, "Cannot decode " + m_url, e);
+        return null;
+      }
+      finally
+      {
+        try
+        {
+          in.close();
+        }
+        catch (IOException e)
+        {
+          // Read already
+        }
+      }
+    }
+
+    @Override
+    protected void onPostExecute(InflikrTileLoader loader)
+    {
+      m_progressBar.setVisibility(ProgressBar.GONE);
+      if (loader == null)
+      {
+        Toast.makeText(InflikrViewerActivity.this, "Cannot load the photo", Toast.LENGTH_SHORT).show();
+        finish();
+        return;
+      }
+      m_loader = loader;
+      m_tileView.setLoader(loader);
+    }
+
+    @Override
+    protected void onCancelled(InflikrTileLoader loader)
+    {
+      if (loader != null)
+      {
+        loader.close();
+      }
+    }
+  }
+}
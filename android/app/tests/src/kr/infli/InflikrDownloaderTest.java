@@ -0,0 +1,425 @@
+//
+//  InflikrDownloaderTest
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+
+package kr.infli;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.app.Instrumentation;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+/**
+ * The users of the bitmaps shared by the memory cache, the views and the
+ * pool: a bitmap must never be decoded into while it is cached or shown.
+ *
+ * <p>
+ * The images are solid color JPEGs of the same size, served from memory, so
+ * every decode may reuse any free bitmap of the pool.
+ * </p>
+ */
+@RunWith(AndroidJUnit4.class)
+public class InflikrDownloaderTest
+{
+  private static final int SIZE = 64;
+  private static final int TIMEOUT = 10 * 1000; // in milliseconds
+
+  private static final String RED = "red";
+  private static final String GREEN = "green";
+  private static final String BLUE = "blue";
+
+  private Instrumentation m_instrumentation;
+  private MemoryTransport m_transport;
+  private InflikrDownloader m_downloader;
+  // Unique by run, so the disk cache of a previous run is not hit
+  private final String m_urlPrefix = "http://farm1.static.flickr.com/test/" + System.nanoTime() + "/";
+
+  @Before
+  public void setUp()
+  {
+    m_instrumentation = InstrumentationRegistry.getInstrumentation();
+    final Map<String, byte[]> images = new HashMap<String, byte[]>();
+    images.put(url(RED), jpeg(Color.RED));
+    images.put(url(GREEN), jpeg(Color.GREEN));
+    images.put(url(BLUE), jpeg(Color.BLUE));
+    m_instrumentation.runOnMainSync(new Runnable()
+    {
+      public void run()
+      {
+        m_transport = new MemoryTransport(images);
+        m_downloader = new InflikrDownloader(m_instrumentation.getTargetContext(), m_transport);
+      }
+    });
+  }
+
+  @After
+  public void tearDown()
+  {
+    m_instrumentation.runOnMainSync(new Runnable()
+    {
+      public void run()
+      {
+        m_downloader.clearCache();
+        m_downloader.close();
+      }
+    });
+  }
+
+  /**
+   * A cached bitmap no view shows anymore is not free.
+   */
+  @Test
+  public void cachedBitmapIsNotReusedOnceUnbound()
+  {
+    Target first = new Target();
+    Bitmap red = downloadAndWait(RED, first);
+    // The cache and the view
+    assertEquals(2, users(red));
+
+    downloadAndWait(GREEN, first);
+    assertEquals(1, users(red));
+    assertNotPooled(red);
+
+    Bitmap blue = downloadAndWait(BLUE, new Target());
+    assertNotSame(red, blue);
+    assertColor(Color.RED, red);
+
+    // Shown from the cache, still red
+    Target second = new Target();
+    assertSame(red, download(RED, second));
+    assertColor(Color.RED, second.m_bitmap);
+  }
+
+  /**
+   * A bitmap evicted from the cache is not free while a view shows it, and is
+   * once the view is rebound.
+   */
+  @Test
+  public void evictedBitmapIsNotReusedWhileBound()
+  {
+    Target target = new Target();
+    Bitmap red = downloadAndWait(RED, target);
+    clearCache();
+    assertEquals(1, users(red));
+    assertNotPooled(red);
+
+    Bitmap blue = downloadAndWait(BLUE, new Target());
+    assertNotSame(red, blue);
+    assertColor(Color.RED, target.m_bitmap);
+
+    // From the cache, a download could decode into the bitmap released meanwhile
+    assertSame(blue, download(BLUE, target));
+    assertEquals(0, users(red));
+    assertTrue(m_downloader.getBitmapPool().isFree(red));
+  }
+
+  /**
+   * A prefetched bitmap, bound to no view, stays cached and is not free.
+   */
+  @Test
+  public void prefetchedBitmapStaysCached()
+  {
+    m_instrumentation.runOnMainSync(new Runnable()
+    {
+      public void run()
+      {
+        m_downloader.prefetch(url(RED), 0, 0);
+      }
+    });
+    long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+    Bitmap red = null;
+    // Only the cache once the fetch has let it go
+    while (red == null || users(red) != 1)
+    {
+      assertTrue("No prefetched image after " + TIMEOUT + "ms", SystemClock.uptimeMillis() < deadline);
+      SystemClock.sleep(10);
+      red = m_downloader.getCachedBitmap(url(RED), 0, 0);
+    }
+    assertNotPooled(red);
+
+    Target target = new Target();
+    assertSame(red, download(RED, target));
+    downloadAndWait(GREEN, target);
+    assertEquals(1, users(red));
+    assertNotPooled(red);
+
+    Bitmap blue = downloadAndWait(BLUE, new Target());
+    assertNotSame(red, blue);
+    assertColor(Color.RED, red);
+  }
+
+  /**
+   * A response cut short of its length is an error, nothing is cached and the
+   * next download fetches the image again.
+   */
+  @Test
+  public void truncatedDownloadIsNotCached()
+  {
+    m_transport.cut(url(RED), jpeg(Color.RED).length / 2);
+    long errors = m_downloader.getMetrics().m_downloadErrors.get();
+    Target target = new Target();
+    download(RED, target);
+    long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+    while (m_downloader.getMetrics().m_downloadErrors.get() == errors)
+    {
+      assertTrue("No error after " + TIMEOUT + "ms", SystemClock.uptimeMillis() < deadline);
+      SystemClock.sleep(10);
+    }
+    assertNull(boundBitmap(target));
+    assertNull(m_downloader.getCachedBitmap(url(RED), 0, 0));
+
+    m_transport.cut(url(RED), -1);
+    int requests = m_transport.getRequests();
+    // A target still showing the failed download would wait on it
+    Bitmap red = downloadAndWait(RED, new Target());
+    assertEquals(requests + 1, m_transport.getRequests());
+    assertColor(Color.RED, red);
+  }
+
+  private String url(String name)
+  {
+    return m_urlPrefix + name + ".jpg";
+  }
+
+  /**
+   * @return The bitmap bound right away, null if it has to be downloaded.
+   */
+  private Bitmap download(final String name, final Target target)
+  {
+    m_instrumentation.runOnMainSync(new Runnable()
+    {
+      public void run()
+      {
+        target.m_bitmap = null;
+        m_downloader.download(url(name), target, null);
+      }
+    });
+    return target.m_bitmap;
+  }
+
+  private Bitmap downloadAndWait(String name, Target target)
+  {
+    download(name, target);
+    long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+    while (SystemClock.uptimeMillis() < deadline)
+    {
+      Bitmap bitmap = boundBitmap(target);
+      if (bitmap != null)
+      {
+        return bitmap;
+      }
+      SystemClock.sleep(10);
+    }
+    throw new AssertionError("No " + name + " image after " + TIMEOUT + "ms");
+  }
+
+  private Bitmap boundBitmap(final Target target)
+  {
+    final Bitmap[] bitmap = new Bitmap[1];
+    m_instrumentation.runOnMainSync(new Runnable()
+    {
+      public void run()
+      {
+        bitmap[0] = target.m_bitmap;
+      }
+    });
+    return bitmap[0];
+  }
+
+  private void clearCache()
+  {
+    m_instrumentation.runOnMainSync(new Runnable()
+    {
+      public void run()
+      {
+        m_downloader.clearCache();
+      }
+    });
+  }
+
+  private int users(Bitmap bitmap)
+  {
+    return m_downloader.getBitmapPool().getUsers(bitmap);
+  }
+
+  /**
+   * Neither free nor handed to the next decode of its size.
+   */
+  private void assertNotPooled(Bitmap bitmap)
+  {
+    InflikrBitmapPool pool = m_downloader.getBitmapPool();
+    assertFalse(pool.isFree(bitmap));
+    Bitmap free = pool.get(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+    assertNotSame(bitmap, free);
+    if (free != null)
+    {
+      pool.put(free);
+    }
+  }
+
+  private static void assertColor(int color, Bitmap bitmap)
+  {
+    assertNotNull(bitmap);
+    int pixel = bitmap.getPixel(SIZE / 2, SIZE / 2);
+    // JPEG and RGB_565 are lossy
+    assertTrue(Integer.toHexString(pixel), Math.abs(Color.red(pixel) - Color.red(color)) < 32 && Math.abs(Color.green(pixel) - Color.green(color)) < 32 && Math.abs(Color.blue(pixel) - Color.blue(color)) < 32);
+  }
+
+  private static byte[] jpeg(int color)
+  {
+    Bitmap bitmap = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.RGB_565);
+    bitmap.eraseColor(color);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    bitmap.compress(Bitmap.CompressFormat.JPEG, 100, out);
+    bitmap.recycle();
+    return out.toByteArray();
+  }
+
+  /**
+   * A view slot, only used from the UI thread.
+   */
+  static class Target implements InflikrImageTarget
+  {
+    Bitmap m_bitmap;
+    Drawable m_drawable;
+
+    public void setImageBitmap(Bitmap bitmap)
+    {
+      m_bitmap = bitmap;
+      m_drawable = null;
+    }
+
+    public void setImageDrawable(Drawable drawable)
+    {
+      m_drawable = drawable;
+      m_bitmap = null;
+    }
+
+    public Drawable getDrawable()
+    {
+      return m_drawable;
+    }
+
+    public void setPartialImage(Bitmap partial, float fraction)
+    {}
+
+    public Object getTag()
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Serves the images from memory, from any thread.
+   */
+  static class MemoryTransport implements InflikrTransport
+  {
+    private final Map<String, byte[]> m_images;
+    // Bytes sent before the connection drops, by URL
+    private final Map<String, Integer> m_cuts = new HashMap<String, Integer>();
+    private int m_requests;
+
+    MemoryTransport(Map<String, byte[]> images)
+    {
+      this.m_images = images;
+    }
+
+    /**
+     * Sends only the first bytes of this image, still announcing its whole
+     * length, -1 to send it whole again.
+     */
+    synchronized void cut(String url, int count)
+    {
+      if (count < 0)
+      {
+        m_cuts.remove(url);
+      }
+      else
+      {
+        m_cuts.put(url, count);
+      }
+    }
+
+    synchronized int getRequests()
+    {
+      return m_requests;
+    }
+
+    private synchronized byte[] send(String url)
+    {
+      m_requests++;
+      byte[] image = m_images.get(url);
+      Integer cut = m_cuts.get(url);
+      return image == null || cut == null ? image : Arrays.copyOf(image, cut);
+    }
+
+    public Request newRequest(final String url)
+    {
+      return new Request()
+      {
+        public Response execute() throws IOException
+        {
+          final int length = m_images.containsKey(url) ? m_images.get(url).length : 0;
+          final byte[] image = send(url);
+          if (image == null)
+          {
+            throw new IOException("No image for " + url);
+          }
+          return new Response()
+          {
+            public int getStatusCode()
+            {
+              return 200;
+            }
+
+            public long getContentLength()
+            {
+              return length;
+            }
+
+            public InputStream getContent()
+            {
+              return new ByteArrayInputStream(image);
+            }
+
+            public void close()
+            {}
+          };
+        }
+
+        public void abort()
+        {}
+      };
+    }
+
+    public void shutdown()
+    {}
+  }
+}
@@ -0,0 +1,102 @@
+//
+//  InflikrFrameMonitor
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+
+package kr.infli.benchmark;
+
+import java.util.Arrays;
+
+import android.view.Choreographer;
+
+/**
+ * Records the start time of every frame drawn by the UI thread while it runs.
+ * Must be started and stopped on the UI thread.
+ */
+public class InflikrFrameMonitor implements Choreographer.FrameCallback
+{
+  private long[] m_frameTimes = new long[1024];
+  private int m_frames;
+  private boolean m_running;
+
+  public void start()
+  {
+    m_frames = 0;
+    m_running = true;
+    Choreographer.getInstance().postFrameCallback(this);
+  }
+
+  public void stop()
+  {
+    m_running = false;
+    Choreographer.getInstance().removeFrameCallback(this);
+  }
+
+  public void doFrame(long frameTimeNanos)
+  {
+    if (!m_running)
+    {
+      return;
+    }
+    if (m_frames == m_frameTimes.length)
+    {
+      m_frameTimes = Arrays.copyOf(m_frameTimes, m_frames * 2);
+    }
+    m_frameTimes[m_frames++] = frameTimeNanos;
+    Choreographer.getInstance().postFrameCallback(this);
+  }
+
+  /**
+   * @return The number of frames drawn.
+   */
+  public int getFrameCount()
+  {
+    return m_frames;
+  }
+
+  /**
+   * @return The durations of the frames, in nanoseconds, sorted.
+   */
+  public long[] getSortedFrameDurations()
+  {
+    long[] durations = new long[Math.max(0, m_frames - 1)];
+    for (int i = 0; i < durations.length; i++)
+    {
+      durations[i] = m_frameTimes[i + 1] - m_frameTimes[i];
+    }
+    Arrays.sort(durations);
+    return durations;
+  }
+
+  /**
+   * @return The number of vsyncs which passed without a new frame, while
+   *         frames were expected.
+   */
+  public int getDroppedFrames(long vsyncNanos)
+  {
+    int dropped = 0;
+    for (int i = 1; i < m_frames; i++)
+    {
+      // A frame late by half a vsync or more missed one
+      long missed = (m_frameTimes[i] - m_frameTimes[i - 1] + vsyncNanos / 2) / vsyncNanos - 1;
+      dropped += Math.max(0, missed);
+    }
+    return dropped;
+  }
+
+  /**
+   * @return The duration below which this percentage of the frames fall, in
+   *         nanoseconds, 0 if no frame was drawn.
+   */
+  static long percentile(long[] sortedDurations, float percentile)
+  {
+    if (sortedDurations.length == 0)
+    {
+      return 0;
+    }
+    int index = (int) Math.ceil(sortedDurations.length * percentile / 100f) - 1;
+    return sortedDurations[Math.max(0, Math.min(sortedDurations.length - 1, index))];
+  }
+}
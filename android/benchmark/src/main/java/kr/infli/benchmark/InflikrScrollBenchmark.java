@@ -0,0 +1,304 @@
+//
+//  InflikrScrollBenchmark
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+
+package kr.infli.benchmark;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.WindowManager;
+import android.widget.ListView;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import kr.infli.InflikrActivity;
+import kr.infli.InflikrFixtureServer;
+import kr.infli.InflikrRowView;
+import kr.infli.R;
+
+/**
+ * Flings the photo list of a cold started InflikrActivity, served by a fixture
+ * server with a shaped network, and measures the frames drawn meanwhile.
+ *
+ * <p>
+ * The results are written as JSON to the external files of the application
+ * and reported as instrumentation status. The test fails when one of them
+ * goes over its limit, each limit is an instrumentation argument with a
+ * default:
+ * </p>
+ *
+ * <pre>
+ *   maxFrameP90Millis, maxFrameP99Millis, maxDroppedFramePercent,
+ *   maxAllocationsPerFrame, maxTimeToFirstImageMillis
+ * </pre>
+ *
+ * <p>
+ * The fixture server runs in the test process and shares the CPU with the
+ * application, the numbers are for comparing runs on the same device.
+ * </p>
+ */
+@RunWith(AndroidJUnit4.class)
+public class InflikrScrollBenchmark
+{
+  static final String LOG_TAG = "InflikrScrollBenchmark";
+
+  static final String RESULT_FILE = "scroll-benchmark.json";
+
+  private static final int PHOTO_COUNT = 500;
+
+  // A 3G link by default
+  private static final int DEFAULT_LATENCY = 150; // in milliseconds
+  private static final int DEFAULT_BANDWIDTH = 256 * 1024; // in bytes per second
+
+  private static final int FLINGS = 6;
+  private static final int FLING_DISTANCE = 8000; // in pixels
+  private static final int FLING_DURATION = 1500; // in milliseconds
+  // Lets the scroll settle and the upgrades start between flings
+  private static final int FLING_PAUSE = 700; // in milliseconds
+
+  private static final int FIRST_IMAGE_TIMEOUT = 30 * 1000; // in milliseconds
+
+  private Instrumentation m_instrumentation;
+  private Bundle m_arguments;
+  private Context m_targetContext;
+  private InflikrFixtureServer m_server;
+  private Activity m_activity;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    m_instrumentation = InstrumentationRegistry.getInstrumentation();
+    m_arguments = InstrumentationRegistry.getArguments();
+    m_targetContext = m_instrumentation.getTargetContext();
+
+    // Cold start: no list nor image left by a previous run
+    deleteContents(m_targetContext.getCacheDir());
+    deleteContents(m_targetContext.getFilesDir());
+
+    File fixtures = m_targetContext.getDir("fixtures", Context.MODE_PRIVATE);
+    copyAssets(m_instrumentation.getContext(), fixtures);
+    m_server = new InflikrFixtureServer(InflikrFixtureServer.loadFixtures(fixtures), PHOTO_COUNT);
+    m_server.setLatency(intArgument("latencyMillis", DEFAULT_LATENCY));
+    m_server.setBandwidth(intArgument("bytesPerSecond", DEFAULT_BANDWIDTH));
+    m_server.setErrorRate(floatArgument("errorRate", 0));
+  }
+
+  @After
+  public void tearDown()
+  {
+    if (m_activity != null)
+    {
+      m_activity.finish();
+    }
+    m_server.stop();
+  }
+
+  @Test
+  public void flingThroughPhotos() throws Exception
+  {
+    int port = m_server.start(0);
+
+    Intent intent = new Intent(m_targetContext, InflikrActivity.class);
+    intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
+    intent.putExtra(InflikrActivity.EXTRA_FIXTURE_HOST, "127.0.0.1");
+    intent.putExtra(InflikrActivity.EXTRA_FIXTURE_PORT, port);
+    long launchTime = SystemClock.uptimeMillis();
+    m_activity = m_instrumentation.startActivitySync(intent);
+    final ListView listView = (ListView) m_activity.findViewById(R.id.listView1);
+
+    long timeToFirstImage = waitForFirstImage(listView) - launchTime;
+
+    final InflikrFrameMonitor monitor = new InflikrFrameMonitor();
+    m_instrumentation.runOnMainSync(new Runnable()
+    {
+      public void run()
+      {
+        monitor.start();
+      }
+    });
+    Debug.resetGlobalAllocCount();
+    Debug.startAllocCounting();
+    for (int i = 0; i <= FLINGS; i++)
+    {
+      // Down, then back up once
+      final int distance = i < FLINGS ? FLING_DISTANCE : -FLING_DISTANCE;
+      m_instrumentation.runOnMainSync(new Runnable()
+      {
+        public void run()
+        {
+          listView.smoothScrollBy(distance, FLING_DURATION);
+        }
+      });
+      SystemClock.sleep(FLING_DURATION + FLING_PAUSE);
+    }
+    Debug.stopAllocCounting();
+    m_instrumentation.runOnMainSync(new Runnable()
+    {
+      public void run()
+      {
+        monitor.stop();
+      }
+    });
+
+    WindowManager windowManager = (WindowManager) m_targetContext.getSystemService(Context.WINDOW_SERVICE);
+    long vsyncNanos = (long) (1e9 / windowManager.getDefaultDisplay().getRefreshRate());
+    long[] durations = monitor.getSortedFrameDurations();
+    int frames = monitor.getFrameCount();
+    int dropped = monitor.getDroppedFrames(vsyncNanos);
+
+    JSONObject results = new JSONObject();
+    results.put("frames", frames);
+    results.put("frameP50Millis", InflikrFrameMonitor.percentile(durations, 50) / 1e6);
+    results.put("frameP90Millis", InflikrFrameMonitor.percentile(durations, 90) / 1e6);
+    results.put("frameP99Millis", InflikrFrameMonitor.percentile(durations, 99) / 1e6);
+    results.put("droppedFrames", dropped);
+    results.put("droppedFramePercent", frames + dropped == 0 ? 0 : 100.0 * dropped / (frames + dropped));
+    results.put("allocationsPerFrame", frames == 0 ? 0 : Debug.getGlobalAllocCount() / frames);
+    results.put("timeToFirstImageMillis", timeToFirstImage);
+    results.put("requests", m_server.getRequestCount());
+    results.put("bytesSent", m_server.getBytesSent());
+    report(results);
+
+    checkLimit(results, "frameP90Millis", "maxFrameP90Millis", 24);
+    checkLimit(results, "frameP99Millis", "maxFrameP99Millis", 50);
+    checkLimit(results, "droppedFramePercent", "maxDroppedFramePercent", 10);
+    checkLimit(results, "allocationsPerFrame", "maxAllocationsPerFrame", 100);
+    checkLimit(results, "timeToFirstImageMillis", "maxTimeToFirstImageMillis", 5000);
+  }
+
+  /**
+   * @return When the photo of the first row was shown.
+   */
+  private long waitForFirstImage(final ListView listView)
+  {
+    final boolean[] shown = new boolean[1];
+    long deadline = SystemClock.uptimeMillis() + FIRST_IMAGE_TIMEOUT;
+    while (SystemClock.uptimeMillis() < deadline)
+    {
+      m_instrumentation.runOnMainSync(new Runnable()
+      {
+        public void run()
+        {
+          InflikrRowView first = (InflikrRowView) listView.getChildAt(0);
+          shown[0] = first != null && first.isPhotoShown();
+        }
+      });
+      if (shown[0])
+      {
+        return SystemClock.uptimeMillis();
+      }
+      SystemClock.sleep(10);
+    }
+    throw new AssertionError("No image after " + FIRST_IMAGE_TIMEOUT + "ms");
+  }
+
+  private void report(JSONObject results) throws IOException, JSONException
+  {
+    Log.i(LOG_TAG, results.toString(2));
+    Bundle status = new Bundle();
+    status.putString("results", results.toString());
+    m_instrumentation.sendStatus(0, status);
+
+    File file = new File(m_targetContext.getExternalFilesDir(null), RESULT_FILE);
+    Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+    try
+    {
+      writer.write(results.toString(2));
+    }
+    finally
+    {
+      writer.close();
+    }
+  }
+
+  private void checkLimit(JSONObject results, String name, String argument, float defaultLimit) throws JSONException
+  {
+    float limit = floatArgument(argument, defaultLimit);
+    double value = results.getDouble(name);
+    assertTrue(name + " is " + value + ", over " + limit, value <= limit);
+  }
+
+  private int intArgument(String name, int defaultValue)
+  {
+    String value = m_arguments.getString(name);
+    return value == null ? defaultValue : Integer.parseInt(value);
+  }
+
+  private float floatArgument(String name, float defaultValue)
+  {
+    String value = m_arguments.getString(name);
+    return value == null ? defaultValue : Float.parseFloat(value);
+  }
+
+  /**
+   * Copies the fixture images, packaged as the assets of the test.
+   */
+  private static void copyAssets(Context context, File directory) throws IOException
+  {
+    byte[] buffer = new byte[8192];
+    for (String name : context.getAssets().list(""))
+    {
+      if (!name.endsWith(".jpg"))
+      {
+        continue;
+      }
+      InputStream in = context.getAssets().open(name);
+      OutputStream out = new FileOutputStream(new File(directory, name));
+      try
+      {
+        int read;
+        while ((read = in.read(buffer)) != -1)
+        {
+          out.write(buffer, 0, read);
+        }
+      }
+      finally
+      {
+        in.close();
+        out.close();
+      }
+    }
+  }
+
+  private static void deleteContents(File directory)
+  {
+    File[] files = directory.listFiles();
+    if (files == null)
+    {
+      return;
+    }
+    for (File file : files)
+    {
+      if (file.isDirectory())
+      {
+        deleteContents(file);
+      }
+      file.delete();
+    }
+  }
+}
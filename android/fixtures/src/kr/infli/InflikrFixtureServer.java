@@ -0,0 +1,452 @@
+//
+//  InflikrFixtureServer
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+
+package kr.infli;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local stand-in for Flickr, for benchmarks which must not depend on the
+ * network. It answers flickr.photos.search with canned JSON (what
+ * flickrj-android asks for) describing photoCount photos, and any other path
+ * with a fixture JPEG. The latency, the bandwidth of each response and the
+ * rate of errors are configurable, errors are drawn from a seeded random so a
+ * run can be replayed.
+ *
+ * <p>
+ * Fixtures are picked by the Flickr size suffix of the requested file, the
+ * fixture files are named the same way: photo_t.jpg (thumbnail), photo_m.jpg
+ * (small), photo.jpg (medium), photo_b.jpg (large). Buddy icons are served the
+ * thumbnails. Paths are the ones InflikrLoopbackTransport sends, the original
+ * host first.
+ * </p>
+ *
+ * <p>
+ * Only uses the JDK, it runs on a Linux box as well as in a device test. Run
+ * it with:
+ * </p>
+ *
+ * <pre>
+ *   java kr.infli.InflikrFixtureServer &lt;fixtures directory&gt; [port] [latency ms] [bytes per second] [error rate]
+ * </pre>
+ */
+public class InflikrFixtureServer
+{
+  private static final String REST_PATH = "/services/rest/";
+  private static final int CHUNK_SIZE = 4 * 1024;
+
+  // Size suffix -> fixtures of that size
+  private final Map<String, List<byte[]>> m_fixtures;
+  private final int m_photoCount;
+
+  private volatile int m_latency;
+  private volatile long m_bytesPerSecond;
+  private volatile float m_errorRate;
+  private final Random m_random = new Random(0);
+
+  private final AtomicLong m_requests = new AtomicLong();
+  private final AtomicLong m_bytesSent = new AtomicLong();
+
+  private ServerSocket m_serverSocket;
+  private ExecutorService m_executor;
+
+  // Kept alive by the clients, closed by stop
+  private final Set<Socket> m_sockets = new HashSet<Socket>();
+
+  /**
+   * @param fixtures
+   *          The JPEG fixtures by size suffix: "t", "m", "" and "b".
+   * @param photoCount
+   *          The number of photos the search finds.
+   */
+  public InflikrFixtureServer(Map<String, List<byte[]>> fixtures, int photoCount)
+  {
+    if (fixtures.isEmpty())
+    {
+      throw new IllegalArgumentException("No fixture");
+    }
+    this.m_fixtures = fixtures;
+    this.m_photoCount = photoCount;
+  }
+
+  /**
+   * Loads the *.jpg of a directory, by their size suffix.
+   */
+  public static Map<String, List<byte[]>> loadFixtures(File directory) throws IOException
+  {
+    Map<String, List<byte[]>> fixtures = new HashMap<String, List<byte[]>>();
+    File[] files = directory.listFiles();
+    if (files == null)
+    {
+      throw new IOException("Cannot list " + directory);
+    }
+    for (File file : files)
+    {
+      if (file.getName().endsWith(".jpg"))
+      {
+        String suffix = sizeSuffix(file.getName());
+        List<byte[]> list = fixtures.get(suffix);
+        if (list == null)
+        {
+          list = new ArrayList<byte[]>();
+          fixtures.put(suffix, list);
+        }
+        list.add(readFully(file));
+      }
+    }
+    return fixtures;
+  }
+
+  /**
+   * Delay before the headers of each response.
+   */
+  public void setLatency(int millis)
+  {
+    this.m_latency = millis;
+  }
+
+  /**
+   * Bandwidth of each response, 0 for no limit.
+   */
+  public void setBandwidth(long bytesPerSecond)
+  {
+    this.m_bytesPerSecond = bytesPerSecond;
+  }
+
+  /**
+   * Fraction of the requests answered with a 503.
+   */
+  public void setErrorRate(float errorRate)
+  {
+    this.m_errorRate = errorRate;
+  }
+
+  public long getRequestCount()
+  {
+    return m_requests.get();
+  }
+
+  public long getBytesSent()
+  {
+    return m_bytesSent.get();
+  }
+
+  /**
+   * Listens on the loopback interface.
+   *
+   * @param port
+   *          The port, 0 for any free one.
+   * @return The port listened to.
+   */
+  public synchronized int start(int port) throws IOException
+  {
+    m_serverSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+    m_executor = Executors.newCachedThreadPool(new ThreadFactory()
+    {
+      public Thread newThread(Runnable runnable)
+      {
+        // Never keeps the benchmark alive
+        Thread thread = new Thread(runnable, "InflikrFixtureServer");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    final ServerSocket serverSocket = m_serverSocket;
+    m_executor.execute(new Runnable()
+    {
+      public void run()
+      {
+        while (!serverSocket.isClosed())
+        {
+          try
+          {
+            final Socket socket = serverSocket.accept();
+            m_executor.execute(new Runnable()
+            {
+              public void run()
+              {
+                serve(socket);
+              }
+            });
+          }
+          catch (IOException e)
+          {
+            // Closed by stop
+          }
+        }
+      }
+    });
+    return m_serverSocket.getLocalPort();
+  }
+
+  public synchronized void stop()
+  {
+    if (m_serverSocket != null)
+    {
+      try
+      {
+        m_serverSocket.close();
+      }
+      catch (IOException e)
+      {}
+      m_executor.shutdownNow();
+      m_serverSocket = null;
+    }
+    synchronized (m_sockets)
+    {
+      for (Socket socket : m_sockets)
+      {
+        try
+        {
+          socket.close();
+        }
+        catch (IOException e)
+        {}
+      }
+      m_sockets.clear();
+    }
+  }
+
+  /**
+   * Serves the requests of a connection, kept alive until the client closes
+   * it.
+   */
+  private void serve(Socket socket)
+  {
+    synchronized (m_sockets)
+    {
+      m_sockets.add(socket);
+    }
+    try
+    {
+      BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+      OutputStream out = socket.getOutputStream();
+      String requestLine;
+      while ((requestLine = in.readLine()) != null)
+      {
+        // Skips the headers
+        String header;
+        while ((header = in.readLine()) != null && header.length() > 0)
+        {}
+        String[] parts = requestLine.split(" ");
+        if (parts.length < 2)
+        {
+          break;
+        }
+        m_requests.incrementAndGet();
+        respond(parts[1], out);
+      }
+    }
+    catch (IOException e)
+    {
+      // The client aborted
+    }
+    catch (InterruptedException e)
+    {
+      // Stopped
+    }
+    finally
+    {
+      synchronized (m_sockets)
+      {
+        m_sockets.remove(socket);
+      }
+      try
+      {
+        socket.close();
+      }
+      catch (IOException e)
+      {}
+    }
+  }
+
+  private void respond(String target, OutputStream out) throws IOException, InterruptedException
+  {
+    if (m_latency > 0)
+    {
+      Thread.sleep(m_latency);
+    }
+    boolean error;
+    synchronized (m_random)
+    {
+      error = m_random.nextFloat() < m_errorRate;
+    }
+    if (error)
+    {
+      send(out, 503, "text/plain", "Injected error".getBytes("UTF-8"));
+      return;
+    }
+    int query = target.indexOf('?');
+    String path = query < 0 ? target : target.substring(0, query);
+    // After the original host, with InflikrLoopbackTransport
+    if (path.endsWith(REST_PATH))
+    {
+      Map<String, String> parameters = parseQuery(query < 0 ? "" : target.substring(query + 1));
+      if ("flickr.photos.search".equals(parameters.get("method")))
+      {
+        send(out, 200, "application/json", searchResponse(parameters).getBytes("UTF-8"));
+      }
+      else
+      {
+        send(out, 200, "application/json", "{\"stat\":\"fail\",\"code\":112,\"message\":\"Method not found\"}".getBytes("UTF-8"));
+      }
+      return;
+    }
+    String name = path.substring(path.lastIndexOf('/') + 1);
+    List<byte[]> fixtures = m_fixtures.get(path.contains("/buddyicons/") || name.equals("buddyicon.jpg") ? "t" : sizeSuffix(name));
+    if (fixtures == null)
+    {
+      fixtures = m_fixtures.values().iterator().next();
+    }
+    send(out, 200, "image/jpeg", fixtures.get((path.hashCode() & 0x7fffffff) % fixtures.size()));
+  }
+
+  /**
+   * @return A page of the photos found, the same for the same page.
+   */
+  String searchResponse(Map<String, String> parameters)
+  {
+    int perPage = parseInt(parameters.get("per_page"), 100);
+    int page = Math.max(1, parseInt(parameters.get("page"), 1));
+    int pages = (m_photoCount + perPage - 1) / perPage;
+    StringBuilder json = new StringBuilder(perPage * 300);
+    json.append("{\"photos\":{\"page\":").append(page).append(",\"pages\":").append(pages);
+    json.append(",\"perpage\":").append(perPage).append(",\"total\":\"").append(m_photoCount).append("\",\"photo\":[");
+    int first = (page - 1) * perPage;
+    for (int i = first; i < Math.min(m_photoCount, first + perPage); i++)
+    {
+      if (i > first)
+      {
+        json.append(',');
+      }
+      int owner = i % 50;
+      json.append("{\"id\":\"").append(1000000 + i).append("\",\"owner\":\"").append(owner).append("@N00\"");
+      json.append(",\"secret\":\"").append(Long.toHexString(0x1000000000L + i)).append("\",\"server\":\"").append(1000 + i % 10).append("\",\"farm\":").append(1 + i % 9);
+      json.append(",\"title\":\"Fixture ").append(i).append("\",\"ispublic\":1,\"isfriend\":0,\"isfamily\":0");
+      json.append(",\"originalsecret\":\"").append(Long.toHexString(0x2000000000L + i)).append("\",\"originalformat\":\"jpg\"");
+      json.append(",\"datetaken\":\"2013-05-").append(10 + i % 20).append(" 12:00:00\",\"datetakengranularity\":\"0\"");
+      json.append(",\"dateupload\":\"").append(1368000000L + i * 3600L).append("\",\"ownername\":\"Owner ").append(owner).append('"');
+      json.append(",\"iconserver\":\"").append(owner == 0 ? 0 : 2000 + owner).append("\",\"iconfarm\":").append(owner == 0 ? 0 : 1 + owner % 9).append('}');
+    }
+    json.append("]},\"stat\":\"ok\"}");
+    return json.toString();
+  }
+
+  /**
+   * Sends the response at the configured bandwidth.
+   */
+  private void send(OutputStream out, int status, String contentType, byte[] body) throws IOException, InterruptedException
+  {
+    String headers = "HTTP/1.1 " + status + (status == 200 ? " OK" : " Service Unavailable") + "\r\n" + "Content-Type: " + contentType + "\r\n" + "Content-Length: " + body.length + "\r\n" + "Connection: keep-alive\r\n\r\n";
+    out.write(headers.getBytes("ISO-8859-1"));
+    long bytesPerSecond = m_bytesPerSecond;
+    for (int offset = 0; offset < body.length; offset += CHUNK_SIZE)
+    {
+      int length = Math.min(CHUNK_SIZE, body.length - offset);
+      out.write(body, offset, length);
+      out.flush();
+      if (bytesPerSecond > 0)
+      {
+        Thread.sleep(length * 1000L / bytesPerSecond);
+      }
+    }
+    out.flush();
+    m_bytesSent.addAndGet(body.length);
+  }
+
+  /**
+   * @return The Flickr size suffix of a file name, "" for the medium size.
+   */
+  static String sizeSuffix(String name)
+  {
+    int dot = name.lastIndexOf('.');
+    String base = dot < 0 ? name : name.substring(0, dot);
+    int underscore = base.lastIndexOf('_');
+    if (underscore >= 0 && base.length() - underscore == 2)
+    {
+      return base.substring(underscore + 1);
+    }
+    return "";
+  }
+
+  private static Map<String, String> parseQuery(String query) throws IOException
+  {
+    Map<String, String> parameters = new HashMap<String, String>();
+    for (String pair : query.split("&"))
+    {
+      int equals = pair.indexOf('=');
+      if (equals > 0)
+      {
+        parameters.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"), URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+      }
+    }
+    return parameters;
+  }
+
+  private static int parseInt(String value, int defaultValue)
+  {
+    try
+    {
+      return value == null ? defaultValue : Integer.parseInt(value);
+    }
+    catch (NumberFormatException e)
+    {
+      return defaultValue;
+    }
+  }
+
+  private static byte[] readFully(File file) throws IOException
+  {
+    byte[] data = new byte[(int) file.length()];
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try
+    {
+      in.readFully(data);
+    }
+    finally
+    {
+      in.close();
+    }
+    return data;
+  }
+
+  public static void main(String[] args) throws IOException
+  {
+    if (args.length < 1)
+    {
+      System.err.println("Usage: InflikrFixtureServer <fixtures directory> [port] [latency ms] [bytes per second] [error rate]");
+      System.exit(1);
+    }
+    InflikrFixtureServer server = new InflikrFixtureServer(loadFixtures(new File(args[0])), 500);
+    int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+    server.setLatency(args.length > 2 ? Integer.parseInt(args[2]) : 0);
+    server.setBandwidth(args.length > 3 ? Long.parseLong(args[3]) : 0);
+    server.setErrorRate(args.length > 4 ? Float.parseFloat(args[4]) : 0);
+    System.out.println("Serving " + args[0] + " on 127.0.0.1:" + server.start(port));
+  }
+}
@@ -0,0 +1,90 @@
+//
+//  InflikrDiskCacheBenchmark
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+
+package kr.infli;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The disk cache of the downloaded bytes, with the size of the application one.
+ * Writes are synced, as they are on the device, so the numbers depend on the
+ * file system.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@State(Scope.Thread)
+public class InflikrDiskCacheBenchmark
+{
+  static final long SIZE = 20 * 1024 * 1024;
+
+  private final InflikrScrollTrace m_trace = InflikrScrollTrace.generate(42);
+  private final byte[] m_bytes = new byte[InflikrScrollTrace.UPGRADE_SIZE];
+  private File m_directory;
+  private InflikrDiskCache m_cache;
+
+  @Setup(Level.Iteration)
+  public void setUp() throws IOException
+  {
+    m_directory = File.createTempFile("inflikr", "cache");
+    m_directory.delete();
+    m_cache = new InflikrDiskCache(m_directory, SIZE);
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown()
+  {
+    m_cache.close();
+    File[] files = m_directory.listFiles();
+    if (files != null)
+    {
+      for (File file : files)
+      {
+        file.delete();
+      }
+    }
+    m_directory.delete();
+  }
+
+  /**
+   * Reads each image from the disk, writing the missing ones, for a whole
+   * scroll. The cache fills up during the first one.
+   *
+   * @return The number of misses.
+   */
+  @Benchmark
+  public int scrollThrough() throws IOException
+  {
+    int misses = 0;
+    for (int i = 0; i < m_trace.size(); i++)
+    {
+      String key = m_trace.m_keys[i];
+      if (m_cache.get(key) == null)
+      {
+        misses++;
+        m_cache.put(key, new ByteArrayInputStream(m_bytes, 0, m_trace.sizeOf(i)));
+      }
+    }
+    return misses;
+  }
+}
@@ -0,0 +1,116 @@
+//
+//  InflikrFetchRegistryBenchmark
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+
+package kr.infli;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The subscriptions of the rows to the fetches, and their cancellation when
+ * the rows are recycled, with fetches which cost nothing. Measures what the
+ * registry and the scheduler add to each download.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class InflikrFetchRegistryBenchmark
+{
+  // Requests of the rows still on screen, the older ones are recycled
+  static final int WINDOW = 4 * InflikrScrollTrace.VISIBLE_ROWS;
+
+  private static final InflikrFetchRegistry.Subscriber<Integer> SUBSCRIBER = new InflikrFetchRegistry.Subscriber<Integer>()
+  {
+    public void onFetched(Integer value)
+    {}
+  };
+
+  private final InflikrScrollTrace m_trace = InflikrScrollTrace.generate(42);
+  private InflikrScheduler m_scheduler;
+  private InflikrFetchRegistry<String, Integer> m_registry;
+
+  @Setup(Level.Iteration)
+  public void setUp()
+  {
+    // As many threads as the downloader
+    m_scheduler = new InflikrScheduler(6, 100, Executors.defaultThreadFactory());
+    m_registry = new InflikrFetchRegistry<String, Integer>(new InflikrFetchRegistry.Fetcher<String, Integer>()
+    {
+      public Integer fetch(String key, InflikrFetchRegistry<String, Integer>.Fetch fetch)
+      {
+        return key.length();
+      }
+
+      public void onDelivered(String key, Integer value)
+      {}
+    }, m_scheduler, new Executor()
+    {
+      public void execute(Runnable command)
+      {
+        command.run();
+      }
+    });
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown()
+  {
+    m_scheduler.shutdownNow();
+  }
+
+  /**
+   * Subscribes for each image of a scroll, cancelling the requests of the
+   * recycled rows, then waits for the fetches left.
+   */
+  @Benchmark
+  public int scrollThrough()
+  {
+    // The subscriptions of the rows on screen, by row slot
+    List<InflikrFetchRegistry<String, Integer>.Subscription> window = new ArrayList<InflikrFetchRegistry<String, Integer>.Subscription>(Collections.<InflikrFetchRegistry<String, Integer>.Subscription> nCopies(WINDOW, null));
+    for (int i = 0; i < m_trace.size(); i++)
+    {
+      InflikrFetchRegistry<String, Integer>.Subscription recycled = window.get(i % WINDOW);
+      if (recycled != null)
+      {
+        recycled.cancel();
+      }
+      window.set(i % WINDOW, m_registry.subscribe(m_trace.m_keys[i], SUBSCRIBER, priorityOf(m_trace.m_kinds[i])));
+    }
+    while (m_registry.size() > 0)
+    {
+      Thread.yield();
+    }
+    return m_scheduler.getQueueSize();
+  }
+
+  static InflikrScheduler.Priority priorityOf(InflikrScrollTrace.Kind kind)
+  {
+    switch (kind)
+    {
+      case AVATAR:
+        return InflikrScheduler.Priority.AVATAR;
+      case UPGRADE:
+        return InflikrScheduler.Priority.HIRES;
+      default:
+        return InflikrScheduler.Priority.THUMBNAIL;
+    }
+  }
+}
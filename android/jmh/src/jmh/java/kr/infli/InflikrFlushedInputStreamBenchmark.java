@@ -0,0 +1,70 @@
+//
+//  InflikrFlushedInputStreamBenchmark
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+
+package kr.infli;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Skipping through a medium JPEG the way the decoder skips its markers, over a
+ * stream which skips as asked and over one which often skips nothing, like a
+ * socket with no byte available yet.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class InflikrFlushedInputStreamBenchmark
+{
+  // Segments of a JPEG, between the skips
+  static final int SEGMENT = 2 * 1024;
+
+  private final byte[] m_data = new byte[InflikrScrollTrace.UPGRADE_SIZE];
+
+  @Benchmark
+  public long skipThrough() throws IOException
+  {
+    return skipThrough(new ByteArrayInputStream(m_data));
+  }
+
+  @Benchmark
+  public long skipThroughStalled() throws IOException
+  {
+    return skipThrough(new ByteArrayInputStream(m_data)
+    {
+      private boolean m_stalled;
+
+      @Override
+      public synchronized long skip(long n)
+      {
+        // Every other call skips nothing
+        m_stalled = !m_stalled;
+        return m_stalled ? 0 : super.skip(n);
+      }
+    });
+  }
+
+  private static long skipThrough(ByteArrayInputStream data) throws IOException
+  {
+    InflikrFlushedInputStream in = new InflikrFlushedInputStream(data);
+    long skipped = 0;
+    long count;
+    while ((count = in.skip(SEGMENT)) > 0)
+    {
+      skipped += count;
+    }
+    return skipped;
+  }
+}
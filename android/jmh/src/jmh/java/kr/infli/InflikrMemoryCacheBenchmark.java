@@ -0,0 +1,253 @@
+//
+//  InflikrMemoryCacheBenchmark
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+
+package kr.infli;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * The hard cache of the decoded bitmaps, with the budget of a 48MB memory
+ * class, so a scroll evicts all the time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class InflikrMemoryCacheBenchmark
+{
+  static final int BUDGET = 48 * 1024 * 1024 / 8;
+
+  // The images a reader looks up, about what the budget holds
+  static final int READ_WINDOW = 8;
+
+  static final InflikrMemoryCache.Weigher<Integer> WEIGHER = new InflikrMemoryCache.Weigher<Integer>()
+  {
+    public int weightOf(Integer weight)
+    {
+      return weight;
+    }
+  };
+
+  /**
+   * A cache per thread, emptied before each iteration.
+   */
+  @State(Scope.Thread)
+  public static class Scroll
+  {
+    InflikrScrollTrace m_trace = InflikrScrollTrace.generate(42);
+    InflikrMemoryCache<String, Integer> m_cache;
+
+    @Setup(Level.Iteration)
+    public void setUp()
+    {
+      m_cache = new InflikrMemoryCache<String, Integer>(BUDGET, WEIGHER);
+    }
+  }
+
+  /**
+   * A cache holding what is on screen, read by the UI thread and the download
+   * threads at the same time.
+   */
+  @State(Scope.Benchmark)
+  public static class Shared
+  {
+    InflikrScrollTrace m_trace = InflikrScrollTrace.generate(42);
+    InflikrMemoryCache<String, Integer> m_cache;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+      m_cache = new InflikrMemoryCache<String, Integer>(BUDGET, WEIGHER);
+      replay(m_trace, m_cache);
+    }
+  }
+
+  /**
+   * Looks each image up and adds the missing ones, for a whole scroll.
+   *
+   * @return The number of misses.
+   */
+  @Benchmark
+  public int scrollThrough(Scroll scroll)
+  {
+    return replay(scroll.m_trace, scroll.m_cache);
+  }
+
+  /**
+   * Lookups only, most of them hits, from four threads.
+   */
+  @Benchmark
+  @Threads(4)
+  public int concurrentLookups(Shared shared)
+  {
+    InflikrScrollTrace trace = shared.m_trace;
+    int hits = 0;
+    // The last rows of the scroll are the cached ones
+    for (int i = trace.size() - 64; i < trace.size(); i++)
+    {
+      if (shared.m_cache.get(trace.m_keys[i]) != null)
+      {
+        hits++;
+      }
+    }
+    return hits;
+  }
+
+  /**
+   * The UI thread and two download threads looking up what was just added,
+   * while another download thread keeps adding and evicting. Run on the
+   * cache of the downloader and on a synchronized LRU, like the LruCache of
+   * the support library.
+   */
+  @State(Scope.Group)
+  public static class Contended
+  {
+    @Param({ "inflikr", "synchronized" })
+    String m_cacheType;
+
+    InflikrScrollTrace m_trace = InflikrScrollTrace.generate(42);
+    Lru m_cache;
+    // The next image of the trace the writer adds
+    volatile int m_written;
+
+    @Setup(Level.Iteration)
+    public void setUp()
+    {
+      if ("inflikr".equals(m_cacheType))
+      {
+        final InflikrMemoryCache<String, Integer> cache = new InflikrMemoryCache<String, Integer>(BUDGET, WEIGHER);
+        m_cache = new Lru()
+        {
+          public Integer get(String key)
+          {
+            return cache.get(key);
+          }
+
+          public void put(String key, Integer value)
+          {
+            cache.put(key, value);
+          }
+        };
+      }
+      else
+      {
+        m_cache = new SynchronizedLru(BUDGET);
+      }
+      m_written = 0;
+    }
+  }
+
+  /**
+   * The position of a reader in the images just added.
+   */
+  @State(Scope.Thread)
+  public static class Reader
+  {
+    int m_next;
+  }
+
+  /**
+   * Looks up one of the last images added.
+   */
+  @Benchmark
+  @Group("readWrite")
+  @GroupThreads(3)
+  public Integer read(Contended contended, Reader reader)
+  {
+    int key = contended.m_written - 1 - (reader.m_next++ & (READ_WINDOW - 1));
+    if (key < 0)
+    {
+      key += contended.m_trace.size();
+    }
+    return contended.m_cache.get(contended.m_trace.m_keys[key]);
+  }
+
+  /**
+   * Adds the next image of the scroll, evicting the oldest ones.
+   */
+  @Benchmark
+  @Group("readWrite")
+  @GroupThreads(1)
+  public void write(Contended contended)
+  {
+    InflikrScrollTrace trace = contended.m_trace;
+    int i = contended.m_written;
+    contended.m_cache.put(trace.m_keys[i], trace.weightOf(i));
+    contended.m_written = i + 1 < trace.size() ? i + 1 : 0;
+  }
+
+  static int replay(InflikrScrollTrace trace, InflikrMemoryCache<String, Integer> cache)
+  {
+    int misses = 0;
+    for (int i = 0; i < trace.size(); i++)
+    {
+      String key = trace.m_keys[i];
+      if (cache.get(key) == null)
+      {
+        misses++;
+        cache.put(key, trace.weightOf(i));
+      }
+    }
+    return misses;
+  }
+
+  /**
+   * The operations of the caches compared.
+   */
+  interface Lru
+  {
+    Integer get(String key);
+
+    void put(String key, Integer value);
+  }
+
+  /**
+   * An access ordered map evicting by weight under a single lock.
+   */
+  static final class SynchronizedLru implements Lru
+  {
+    private final LinkedHashMap<String, Integer> m_map = new LinkedHashMap<String, Integer>(16, 0.75f, true);
+    private final int m_maxWeight;
+    private int m_weight;
+
+    SynchronizedLru(int maxWeight)
+    {
+      this.m_maxWeight = maxWeight;
+    }
+
+    public synchronized Integer get(String key)
+    {
+      return m_map.get(key);
+    }
+
+    public synchronized void put(String key, Integer value)
+    {
+      Integer previous = m_map.put(key, value);
+      m_weight += value - (previous == null ? 0 : previous);
+      Iterator<Map.Entry<String, Integer>> eldest = m_map.entrySet().iterator();
+      while (m_weight > m_maxWeight && eldest.hasNext())
+      {
+        m_weight -= eldest.next().getValue();
+        eldest.remove();
+      }
+    }
+  }
+}
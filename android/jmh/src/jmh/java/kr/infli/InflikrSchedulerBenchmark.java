@@ -0,0 +1,88 @@
+//
+//  InflikrSchedulerBenchmark
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+
+package kr.infli;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Scheduling into a full queue, as during a fling on a slow network: the
+ * threads are all busy and each new task drops the least urgent one.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class InflikrSchedulerBenchmark
+{
+  static final int THREADS = 6;
+  static final int MAX_QUEUED = 100;
+
+  private static final Runnable NOTHING = new Runnable()
+  {
+    public void run()
+    {}
+  };
+
+  private final InflikrScrollTrace m_trace = InflikrScrollTrace.generate(42);
+  private InflikrScheduler m_scheduler;
+  private CountDownLatch m_downloading;
+  private int m_next;
+
+  @Setup(Level.Iteration)
+  public void setUp()
+  {
+    m_scheduler = new InflikrScheduler(THREADS, MAX_QUEUED, Executors.defaultThreadFactory());
+    m_downloading = new CountDownLatch(1);
+    for (int i = 0; i < THREADS; i++)
+    {
+      m_scheduler.schedule(new Runnable()
+      {
+        public void run()
+        {
+          try
+          {
+            m_downloading.await();
+          }
+          catch (InterruptedException e)
+          {
+            // Shut down
+          }
+        }
+      }, InflikrScheduler.Priority.THUMBNAIL);
+    }
+    for (int i = 0; i < MAX_QUEUED; i++)
+    {
+      schedule();
+    }
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown()
+  {
+    m_downloading.countDown();
+    m_scheduler.shutdownNow();
+  }
+
+  @Benchmark
+  public InflikrScheduler.Task schedule()
+  {
+    int request = m_next++ % m_trace.size();
+    return m_scheduler.schedule(NOTHING, InflikrFetchRegistryBenchmark.priorityOf(m_trace.m_kinds[request]));
+  }
+}
@@ -0,0 +1,165 @@
+//
+//  InflikrScrollTrace
+//
+//  Copyright 2013 infli.kr mobile
+//  https://github.com/eboudrant/inflickr_mobile
+//
+
+package kr.infli;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The images asked for while scrolling through a 500 photo search, as the
+ * adapter asks for them.
+ *
+ * <p>
+ * The list is mostly flung forward, sometimes dragged a few rows or scrolled
+ * back. Each row entering the screen binds its photo then the avatar of its
+ * owner, a few owners having most of the photos. When the scroll stops, the
+ * visible rows ask for their upgrade. The weights are the bytes of the decoded
+ * bitmaps, the sizes are the bytes downloaded, for a 720 pixels wide screen.
+ * </p>
+ */
+final class InflikrScrollTrace
+{
+  static final int ROWS = 500;
+  static final int OWNERS = 150;
+  static final int VISIBLE_ROWS = 3;
+
+  // 720x490 photo and 90x90 avatar, RGB_565
+  static final int PHOTO_WEIGHT = 720 * 490 * 2;
+  static final int AVATAR_WEIGHT = 90 * 90 * 2;
+
+  // Small, medium and buddy icon JPEGs
+  static final int PHOTO_SIZE = 15 * 1024;
+  static final int UPGRADE_SIZE = 60 * 1024;
+  static final int AVATAR_SIZE = 2 * 1024;
+
+  /**
+   * What a request is for, in the order of the scheduler priorities.
+   */
+  enum Kind
+  {
+    PHOTO, AVATAR, UPGRADE
+  }
+
+  // One request per index
+  final String[] m_keys;
+  final Kind[] m_kinds;
+  final int[] m_rows;
+
+  private InflikrScrollTrace(List<String> keys, List<Kind> kinds, List<Integer> rows)
+  {
+    int count = keys.size();
+    m_keys = keys.toArray(new String[count]);
+    m_kinds = kinds.toArray(new Kind[count]);
+    m_rows = new int[count];
+    for (int i = 0; i < count; i++)
+    {
+      m_rows[i] = rows.get(i);
+    }
+  }
+
+  int size()
+  {
+    return m_keys.length;
+  }
+
+  int weightOf(int request)
+  {
+    return m_kinds[request] == Kind.AVATAR ? AVATAR_WEIGHT : PHOTO_WEIGHT;
+  }
+
+  int sizeOf(int request)
+  {
+    switch (m_kinds[request])
+    {
+      case AVATAR:
+        return AVATAR_SIZE;
+      case UPGRADE:
+        return UPGRADE_SIZE;
+      default:
+        return PHOTO_SIZE;
+    }
+  }
+
+  /**
+   * @return The same trace for the same seed.
+   */
+  static InflikrScrollTrace generate(long seed)
+  {
+    Random random = new Random(seed);
+    int[] owners = new int[ROWS];
+    for (int row = 0; row < ROWS; row++)
+    {
+      // Skewed, the first owners come back often
+      double r = random.nextDouble();
+      owners[row] = (int) (OWNERS * r * r * r);
+    }
+
+    List<String> keys = new ArrayList<String>();
+    List<Kind> kinds = new ArrayList<Kind>();
+    List<Integer> rows = new ArrayList<Integer>();
+    for (int row = 0; row < VISIBLE_ROWS; row++)
+    {
+      bind(row, owners, keys, kinds, rows);
+    }
+    int first = 0;
+    while (first + VISIBLE_ROWS < ROWS)
+    {
+      int draw = random.nextInt(100);
+      int distance;
+      if (draw < 70)
+      {
+        // Fling
+        distance = 3 + random.nextInt(28);
+      }
+      else if (draw < 85)
+      {
+        // Drag
+        distance = 1 + random.nextInt(3);
+      }
+      else
+      {
+        // Back up
+        distance = -1 - random.nextInt(10);
+      }
+      int target = Math.max(0, Math.min(ROWS - VISIBLE_ROWS, first + distance));
+      while (first != target)
+      {
+        // The row entering the screen at the leading edge
+        if (target > first)
+        {
+          first++;
+          bind(first + VISIBLE_ROWS - 1, owners, keys, kinds, rows);
+        }
+        else
+        {
+          first--;
+          bind(first, owners, keys, kinds, rows);
+        }
+      }
+      // Scroll idle
+      for (int row = first; row < first + VISIBLE_ROWS; row++)
+      {
+        keys.add("p/" + row + "/u");
+        kinds.add(Kind.UPGRADE);
+        rows.add(row);
+      }
+    }
+    return new InflikrScrollTrace(keys, kinds, rows);
+  }
+
+  private static void bind(int row, int[] owners, List<String> keys, List<Kind> kinds, List<Integer> rows)
+  {
+    keys.add("p/" + row);
+    kinds.add(Kind.PHOTO);
+    rows.add(row);
+    keys.add("a/" + owners[row]);
+    kinds.add(Kind.AVATAR);
+    rows.add(row);
+  }
+}